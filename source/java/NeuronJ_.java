@@ -1,5 +1,6 @@
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.Prefs;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -17,17 +18,21 @@ import ij.plugin.BrowserLauncher;
 import ij.plugin.PlugIn;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import ij.text.TextPanel;
 import ij.text.TextWindow;
 
 import imagescience.ImageScience;
-import imagescience.image.Dimensions;
+import imagescience.image.FloatImage;
 import imagescience.image.Image;
 import imagescience.feature.Differentiator;
 import imagescience.utility.FMath;
 import imagescience.utility.Formatter;
 import imagescience.utility.Progressor;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Button;
@@ -54,7 +59,9 @@ import java.awt.Label;
 import java.awt.Panel;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.EventQueue;
 import java.awt.TextField;
+import java.awt.image.BufferedImage;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
@@ -79,8 +86,18 @@ import java.io.FilenameFilter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.StringBuffer;
 import java.lang.System;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 // Launches NeuronJ and together with its auxiliary classes takes care of handling all interactions.
 public final class NeuronJ_ implements PlugIn {
@@ -88,7 +105,7 @@ public final class NeuronJ_ implements PlugIn {
 	// Minimum version numbers:
 	private final static String MINIJVERSION = "1.50a";
 	private final static String MINISVERSION = "3.0.0";
-	private final static String MINJREVERSION = "1.6.0";
+	private final static String MINJREVERSION = "1.7.0";
 	
 	// Performs checks and launches the application:
 	public void run(final String arg) {
@@ -135,7 +152,7 @@ final class NJ {
 	
 	// NeuronJ name and version number:
 	static final String NAME = "NeuronJ";
-	static final String VERSION = "1.4.3";
+	static final String VERSION = "1.5.0";
 	
 	// Initialization operations:
 	static void init() {
@@ -164,6 +181,8 @@ final class NJ {
 		// Install NeuronJ toolbar and handler:
 		ntb = new TracingToolbar();
 		nhd = new TracingHandler();
+		pft = new Prefetcher();
+		pse = new PathSearcher();
 		
 		NJ.copyright();
 		log("Initialization completed in "+(System.currentTimeMillis()-lStartTime)+" ms");
@@ -178,6 +197,8 @@ final class NJ {
 	// Handles for shared objects:
 	static TracingToolbar ntb = null;
 	static TracingHandler nhd = null;
+	static Prefetcher pft = null;
+	static PathSearcher pse = null;
 	static MeasurementsDialog mdg = null;
 	static AttributesDialog adg = null;
 	static TextWindow grw = null;
@@ -208,13 +229,51 @@ final class NJ {
 			imagename = "";
 		} else {
 			image = true;
-			final String title = imageplus.getTitle();
-			final int dotIndex = title.lastIndexOf(".");
-			if (dotIndex >= 0) imagename = title.substring(0,dotIndex);
-			else imagename = title;
+			imagename = basename(imageplus.getTitle());
 		}
 	}
 	
+	static String basename(final String title) {
+		final int dotIndex = title.lastIndexOf(".");
+		if (dotIndex >= 0) return title.substring(0,dotIndex);
+		else return title;
+	}
+	
+	// Returns the scales in the given string, separated by spaces or
+	// commas, in increasing order without duplicates. Scales that are
+	// not numbers or are less than one are ignored:
+	static float[] scales(final String list) {
+		final String[] items = list.trim().split("[\\s,]+");
+		final float[] values = new float[items.length];
+		int count = 0;
+		for (int i=0; i<items.length; ++i) try {
+			final float value = Float.parseFloat(items[i]);
+			if (value >= 1.0f) values[count++] = value;
+		} catch (NumberFormatException e) { }
+		return sort(values,count);
+	}
+	
+	static String scales(final float[] values) {
+		final StringBuffer list = new StringBuffer();
+		for (int i=0; i<values.length; ++i) { if (i > 0) list.append(' '); list.append(values[i]); }
+		return list.toString();
+	}
+	
+	// Returns the scales at which the costs are computed:
+	static float[] costscales() {
+		final float[] values = Arrays.copyOf(scales,scales.length+1);
+		values[scales.length] = scale;
+		return sort(values,values.length);
+	}
+	
+	// Sorts the given number of values and removes duplicates:
+	private static float[] sort(final float[] values, final int count) {
+		Arrays.sort(values,0,count);
+		int unique = 0;
+		for (int i=0; i<count; ++i) if (unique == 0 || values[i] != values[unique-1]) values[unique++] = values[i];
+		return Arrays.copyOf(values,unique);
+	}
+	
 	// Method for showing no-image error message:
 	static void noImage() {
 		notify("Please load an image first using "+NAME);
@@ -274,17 +333,50 @@ final class NJ {
 	// Scale at which eigenvalues are computed:
 	static float scale = 2.0f;
 	
+	// Additional scales at which eigenvalues are computed, in increasing
+	// order (none for costs at a single scale):
+	static float[] scales = new float[0];
+	
 	// Cost component weight factor:
 	static float gamma = 0.7f;
 	
+	// Directory for caching cost fields (if empty, a directory in the
+	// preferences directory of the user is used) and maximum total size
+	// of the cache in megabytes (zero disables caching):
+	static String cachedir = "";
+	static int cachesize = 1024;
+	
+	// Maximum total size in megabytes of the images and costs prefetched
+	// in the background (zero disables prefetching):
+	static int prefetchsize = 512;
+	
+	// Number of threads used for computing costs:
+	static int threads = Runtime.getRuntime().availableProcessors();
+	
 	// Half-window size for snapping cursor to locally lowest cost:
 	static int snaprange = 4;
 	
-	// Window size for shortest-path searching. Must be less than about
-	// 2900 in order to avoid cumulative costs exceeding the range
-	// spanned by the integers.
+	// Window size for shortest-path searching. There is no upper bound:
+	// the cumulative costs may exceed the range spanned by the integers,
+	// as they are compared only to costs differing by less than 256, and
+	// then modulo 2^32.
 	static int dijkrange = 2500;
 	
+	// Largest window size for which the searches fit in half of the
+	// maximum heap size. Per pixel of the window, Dijkstra and at most
+	// one other search take up to 23 bytes, and the edge weights kept
+	// up to 16 bytes:
+	static int maxdijkrange() {
+		
+		return (int)Math.sqrt(Runtime.getRuntime().maxMemory()/(2*39.0)) - 1;
+	}
+	
+	// Method for finding the path to the cursor: Dijkstra only, or A*,
+	// bidirectional or coarse-to-fine search for cursor points not yet
+	// reached by Dijkstra:
+	static final int DIJKSTRA = 0, ASTAR = 1, BIDIRECTIONAL = 2, PYRAMID = 3;
+	static int pathsearch = DIJKSTRA;
+	
 	// For smoothing and subsampling tracing segments:
 	static int halfsmoothrange = 5;
 	static int subsamplefactor = 5;
@@ -350,12 +442,18 @@ final class NJ {
 		
 		Prefs.set("nj.appear",appear);
 		Prefs.set("nj.scale",scale);
+		Prefs.set("nj.scales",scales(scales));
 		Prefs.set("nj.gamma",gamma);
 		Prefs.set("nj.snaprange",snaprange);
 		Prefs.set("nj.dijkrange",dijkrange);
+		Prefs.set("nj.pathsearch",pathsearch);
 		Prefs.set("nj.halfsmoothrange",halfsmoothrange);
 		Prefs.set("nj.subsamplefactor",subsamplefactor);
 		Prefs.set("nj.linewidth",linewidth);
+		Prefs.set("nj.threads",threads);
+		Prefs.set("nj.cachedir",cachedir);
+		Prefs.set("nj.cachesize",cachesize);
+		Prefs.set("nj.prefetchsize",prefetchsize);
 		Prefs.set("nj.activate",activate);
 		Prefs.set("nj.usename",usename);
 		Prefs.set("nj.autosave",autosave);
@@ -367,13 +465,20 @@ final class NJ {
 		
 		appear = (int)Prefs.get("nj.appear",appear);
 		scale = (float)Prefs.get("nj.scale",scale);
+		scales = scales(Prefs.get("nj.scales",scales(scales)));
 		gamma = (float)Prefs.get("nj.gamma",gamma);
 		snaprange = (int)Prefs.get("nj.snaprange",snaprange);
-		dijkrange = (int)Prefs.get("nj.dijkrange",dijkrange);
+		dijkrange = Math.min((int)Prefs.get("nj.dijkrange",dijkrange),maxdijkrange());
+		pathsearch = (int)Prefs.get("nj.pathsearch",pathsearch);
 		halfsmoothrange = (int)Prefs.get("nj.halfsmoothrange",halfsmoothrange);
 		subsamplefactor = (int)Prefs.get("nj.subsamplefactor",subsamplefactor);
 		linewidth = (int)Prefs.get("nj.linewidth",linewidth);
 		tracestroke = new BasicStroke(linewidth,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
+		threads = (int)Prefs.get("nj.threads",threads);
+		if (threads < 1) threads = 1;
+		cachedir = Prefs.get("nj.cachedir",cachedir);
+		cachesize = (int)Prefs.get("nj.cachesize",cachesize);
+		prefetchsize = (int)Prefs.get("nj.prefetchsize",prefetchsize);
 		activate = Prefs.get("nj.activate",activate);
 		usename = Prefs.get("nj.usename",usename);
 		autosave = Prefs.get("nj.autosave",autosave);
@@ -397,9 +502,14 @@ final class NJ {
 		}
 		
 		ntb.restoreToolbar();
+		ImagePlus.removeImageListener(nhd);
+		pft.quit();
+		pse.quit();
 		
 		ntb = null;
 		nhd = null;
+		pft = null;
+		pse = null;
 		image(null);
 		
 		IJ.showStatus("");
@@ -640,6 +750,7 @@ final class TracingToolbar extends Canvas implements MouseListener, MouseMotionL
 									if (NJ.workimages[i].equals(file)) {
 										NJ.workimagenr = i;
 										NJ.log("Loaded image is number "+NJ.workimagenr+" on the list");
+										NJ.pft.prefetch(NJ.workdir,NJ.workimages,NJ.workimagenr);
 										break;
 									}
 							}
@@ -692,21 +803,16 @@ final class TracingToolbar extends Canvas implements MouseListener, MouseMotionL
 	boolean loadImage(final String dir, final String file) {
 		
 		final String directory = dir.endsWith(File.separator) ? dir : dir+File.separator;
-		final ImagePlus newImp = (new Opener()).openImage(directory,file);
+		final Prefetcher.Entry entry = NJ.pft.take(directory,file);
+		final ImagePlus newImp = (entry != null) ? entry.imp : (new Opener()).openImage(directory,file);
 		boolean bAccept = false;
 		
 		if (newImp != null) {
 			
+			if (entry != null) NJ.log("Using prefetched image "+directory+file);
 			NJ.log("Checking image "+directory+file);
-			final int type = newImp.getType();
-			if (type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256)
-			NJ.error("Only 8-bit images are supported");
-			else if (newImp.getStackSize() != 1)
-			NJ.error("Image stacks are not supported");
-			else if (newImp.getWidth() < 3)
-			NJ.error("Image too small in x-dimension");
-			else if (newImp.getHeight() < 3)
-			NJ.error("Image too small in y-dimension");
+			final String unsupported = unsupported(newImp);
+			if (unsupported != null) NJ.error(unsupported);
 			else bAccept = true;
 			
 			if (bAccept) {
@@ -724,7 +830,7 @@ final class TracingToolbar extends Canvas implements MouseListener, MouseMotionL
 				imp = newImp; imp.show();
 				imw = imp.getWindow();
 				imw.addWindowListener(this);
-				NJ.nhd.attach(imp);
+				NJ.nhd.attach(imp,entry);
 				IJ.showStatus("Loaded image from "+directory+file);
 				iPreviousTool = MAGNIFY;
 				final String ndfile = NJ.imagename + ".ndf";
@@ -749,6 +855,19 @@ final class TracingToolbar extends Canvas implements MouseListener, MouseMotionL
 		return bAccept;
 	}
 	
+	// Returns the reason why the given image cannot be traced, or null if it can:
+	static String unsupported(final ImagePlus imp) {
+		
+		final int type = imp.getType();
+		if (type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256 && type != ImagePlus.GRAY16 && type != ImagePlus.GRAY32)
+		return "Only 8-bit, 16-bit and 32-bit gray-scale images are supported";
+		else if (imp.getWidth() < 3)
+		return "Image too small in x-dimension";
+		else if (imp.getHeight() < 3)
+		return "Image too small in y-dimension";
+		return null;
+	}
+	
 	void restoreListeners() { imw.removeWindowListener(this); }
 	
 	void restoreToolbar() {
@@ -1136,16 +1255,25 @@ final class TracingToolbar extends Canvas implements MouseListener, MouseMotionL
 }
 
 // ***************************************************************************
-final class TracingHandler extends Roi implements KeyListener, MouseListener, MouseMotionListener {
+final class TracingHandler extends Roi implements ImageListener, KeyListener, MouseListener, MouseMotionListener {
 	
 	private ImagePlus imp;
 	private ImageCanvas imc;
 	private ImageWindow imw;
-	ByteProcessor ipgray;
-	
-	private final Dijkstra dijkstra = new Dijkstra();
-	private float[][][] costs;
-	private byte[][] dirsimage;
+	ImageProcessor ipgray;
+	
+	private CostField costs;
+	private byte[] costsdigest;
+	private ScaleSpace scalespace;
+	private Costs.Responses responses;
+	private SnapIndex snapindex;
+	private Prefetcher.Entry pending;
+	// Hash of the pixels of the current slice, and whether the image has
+	// been updated since it was computed:
+	private int fingerprint;
+	private volatile boolean updated = false;
+	private boolean bSearched;
+	private int searchid;
 	
 	private final Point clckPoint = new Point();
 	private final Point currPoint = new Point();
@@ -1156,17 +1284,20 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 	private final Point zoomPoint = new Point();
 	
 	private Tracings tracings = new Tracings();
+	private Tracings[] slices = { tracings };
+	private int slice = 1;
 	private Tracing currTracing;
 	private Segment currSegment = new Segment();
 	private Segment ssmpSegment = new Segment();
 	private Point currVertex;
+	private Tracing moveTracing;
+	private final Overlay overlay = new Overlay();
 	
 	private boolean bTracingActive;
 	private boolean bManualTracing;
 	private boolean bSnapCursor;
 	private boolean bSmoothSegment;
 	private boolean bComputedCosts;
-	private boolean bDijkstra;
 	private boolean bOnCanvas = false;
 	
 	private int iXSize, iYSize;
@@ -1175,33 +1306,23 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 	
 	TracingHandler() { super(0,0,1,1); }
 	
-	void attach(final ImagePlus impNew) {
+	// Attaches the handler to the given image. If the image was
+	// prefetched, the given entry provides its gray-scale copy and
+	// (possibly later) its costs, otherwise the entry is null.
+	void attach(final ImagePlus impNew, final Prefetcher.Entry entry) {
 		
 		// Copy handles:
 		imp = impNew;
 		imw = imp.getWindow();
 		imc = imw.getCanvas();
 		
-		// Create a copy that is surely a gray-scale image (the pixels
-		// are already of type byte, but may represent color indices,
-		// not actual gray-values):
-		NJ.log("Creating gray-scale copy of new image...");
 		iXSize = imp.getWidth(); iYSize = imp.getHeight();
-		final ByteProcessor ipIn = (ByteProcessor)imp.getProcessor();
-		final IndexColorModel icm = (IndexColorModel)ipIn.getColorModel();
-		final int iMapSize = icm.getMapSize();
-		final byte[] r = new byte[iMapSize]; icm.getReds(r);
-		final byte[] g = new byte[iMapSize]; icm.getGreens(g);
-		final byte[] b = new byte[iMapSize]; icm.getBlues(b);
-		try {
-			ipgray = new ByteProcessor(iXSize,iYSize);
-			final byte[] g8pxs = (byte[])ipgray.getPixels();
-			final byte[] inpxs = (byte[])ipIn.getPixels();
-			final int nrpxs = inpxs.length;
-			for (int i=0; i<nrpxs; ++i) {
-				final int index = inpxs[i]&0xFF;
-				g8pxs[i] = (byte)FMath.round((r[index]&0xFF)*0.3 + (g[index]&0xFF)*0.6 + (b[index]&0xFF)*0.1);
-			}
+		if (entry != null && entry.gray != null) {
+			ipgray = entry.gray;
+		} else try {
+			NJ.log("Creating gray-scale copy of new image...");
+			ipgray = null;
+			ipgray = grayscale(imp.getProcessor());
 		} catch (OutOfMemoryError e) {
 			NJ.outOfMemory();
 			ipgray = null;
@@ -1218,12 +1339,24 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		imc.addKeyListener(this);
 		imc.addMouseListener(this);
 		imc.addMouseMotionListener(this);
+		ImagePlus.removeImageListener(this);
+		ImagePlus.addImageListener(this);
 		NJ.log("Done");
 		
 		// Reset variables:
 		costs = null;
-		dirsimage = null;
-		tracings.reset();
+		costsdigest = null;
+		scalespace = null;
+		if (responses != null) { responses.close(); responses = null; }
+		snapindex = null;
+		pending = entry;
+		fingerprint = fingerprint(imp.getProcessor());
+		bSearched = false;
+		searchid = 0;
+		tracings = new Tracings();
+		slices = new Tracings[imp.getStackSize()];
+		slice = imp.getCurrentSlice();
+		slices[slice-1] = tracings;
 		Tracing.resetID();
 		currSegment.reset();
 		ssmpSegment.reset();
@@ -1234,32 +1367,266 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		bSnapCursor = true;
 		bSmoothSegment = true;
 		bComputedCosts = false;
-		bDijkstra = false;
+		NJ.pse.cancel();
+		if (pending != null) adopt(false);
+		prefetch(0);
 		
 		// Enable displaying tracings:
 		ic = null; // Work-around to prevent cloning in imp.setRoi()
 		imp.setRoi(this);
+		updated = false;
+	}
+	
+	// Returns a version of the given image that is surely a gray-scale
+	// image (the pixels of 8-bit images may represent color indices, not
+	// actual gray-values). If the color map is the identity, and always
+	// for 16-bit and 32-bit images, the returned image shares the pixels
+	// of the given image rather than copying them, so that the latter
+	// are used at their full dynamic range:
+	static ImageProcessor grayscale(final ImageProcessor ip) {
+		
+		if (ip instanceof ShortProcessor) return new ShortProcessor(ip.getWidth(),ip.getHeight(),(short[])ip.getPixels(),null);
+		if (ip instanceof FloatProcessor) return new FloatProcessor(ip.getWidth(),ip.getHeight(),(float[])ip.getPixels(),null);
+		final ByteProcessor ipIn = (ByteProcessor)ip;
+		final IndexColorModel icm = (IndexColorModel)ipIn.getColorModel();
+		final int iMapSize = icm.getMapSize();
+		final byte[] r = new byte[iMapSize]; icm.getReds(r);
+		final byte[] g = new byte[iMapSize]; icm.getGreens(g);
+		final byte[] b = new byte[iMapSize]; icm.getBlues(b);
+		final byte[] inpxs = (byte[])ipIn.getPixels();
+		boolean identity = (iMapSize == 256);
+		for (int i=0; i<iMapSize && identity; ++i)
+			identity = ((r[i]&0xFF) == i && (g[i]&0xFF) == i && (b[i]&0xFF) == i);
+		if (identity) return new ByteProcessor(ip.getWidth(),ip.getHeight(),inpxs,null);
+		final ByteProcessor ipgray = new ByteProcessor(ip.getWidth(),ip.getHeight());
+		final byte[] g8pxs = (byte[])ipgray.getPixels();
+		final int nrpxs = inpxs.length;
+		for (int i=0; i<nrpxs; ++i) {
+			final int index = inpxs[i]&0xFF;
+			g8pxs[i] = (byte)FMath.round((r[index]&0xFF)*0.3 + (g[index]&0xFF)*0.6 + (b[index]&0xFF)*0.1);
+		}
+		return ipgray;
+	}
+	
+	// Returns a hash of the pixels of the given image, by which edits of
+	// the image are detected:
+	private static int fingerprint(final ImageProcessor ip) {
+		
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) return Arrays.hashCode((byte[])pixels);
+		if (pixels instanceof short[]) return Arrays.hashCode((short[])pixels);
+		if (pixels instanceof float[]) return Arrays.hashCode((float[])pixels);
+		return 0;
+	}
+	
+	// The gray-scale version of the image may share its pixels, so if the
+	// image has been edited, everything computed from it is discarded and
+	// the gray-scale version is made again. Since the image is updated
+	// also when only its display changes, the pixels are checked only
+	// when the costs are needed:
+	private void revalidate() {
+		
+		if (!updated) return;
+		updated = false;
+		if (imp.getWidth() != iXSize || imp.getHeight() != iYSize || TracingToolbar.unsupported(imp) != null) return;
+		final int fp = fingerprint(imp.getProcessor());
+		if (fp == fingerprint) return;
+		NJ.log("Image changed: discarding its costs");
+		fingerprint = fp;
+		NJ.pse.cancel();
+		bSearched = false;
+		searchid = 0;
+		pending = null;
+		costs = null;
+		costsdigest = null;
+		scalespace = null;
+		if (responses != null) { responses.close(); responses = null; }
+		snapindex = null;
+		bComputedCosts = false;
+		try {
+			ipgray = null;
+			ipgray = grayscale(imp.getProcessor());
+		} catch (OutOfMemoryError e) {
+			NJ.outOfMemory();
+			ipgray = null;
+		}
+		// Edits may have been applied to all slices:
+		NJ.pft.slices(null,null,0,0);
+		prefetch(0);
+		redraw();
+	}
+	
+	// Takes over the costs computed in the background for the current
+	// image, if they are available and computed with the current
+	// parameters. If requested, waits for the computation to finish:
+	private void adopt(final boolean wait) {
+		
+		final CostField pcosts = NJ.pft.costs(pending,wait);
+		if (pcosts != null) {
+			NJ.log("Using prefetched costs");
+			costs = pcosts;
+			costsdigest = pending.digest;
+			bComputedCosts = true;
+		}
+		if (wait || pcosts != null) pending = null;
+	}
+	
+	// Called on the event dispatch thread when the background
+	// computation of the costs for the given entry has finished:
+	void prefetched(final Prefetcher.Entry entry) {
+		
+		if (entry == pending) adopt(true);
+	}
+	
+	// Called when the current image is updated, which includes moving
+	// to another slice of a stack and editing the image:
+	public void imageUpdated(final ImagePlus image) {
+		
+		if (image != imp) return;
+		if (image.getCurrentSlice() == slice) { updated = true; return; }
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				try { if (NJ.nhd == TracingHandler.this && NJ.imageplus == image) slice(image.getCurrentSlice()); }
+				catch (Throwable e) { NJ.catcher.uncaughtException(Thread.currentThread(),e); }
+			}
+		});
+	}
+	
+	public void imageOpened(final ImagePlus image) { }
+	
+	public void imageClosed(final ImagePlus image) { }
+	
+	// Moves to the given slice of the current stack. Each slice has its own
+	// tracings. The gray-scale copy and costs of the slice being left are
+	// kept by the prefetcher among those of the most recently visited
+	// slices, and the costs of the new slice are taken from there or
+	// prefetched, or otherwise computed on demand like for a new image:
+	private void slice(final int nr) {
+		
+		if (nr == slice || nr < 1 || nr > slices.length) return;
+		NJ.log("Moving to slice "+nr);
+		if (bTracingActive) {
+			finishCurrSegment();
+			finishCurrTracing();
+		}
+		NJ.pse.cancel();
+		NJ.pft.keep(NJ.workdir,imp,slice,ipgray,(pending == null) ? costs : null,costsdigest);
+		final int step = nr - slice;
+		slice = nr;
+		if (slices[slice-1] == null) slices[slice-1] = new Tracings();
+		tracings = slices[slice-1];
+		
+		final Prefetcher.Entry entry = NJ.pft.take(imp,slice);
+		costs = null;
+		costsdigest = null;
+		scalespace = null;
+		if (responses != null) { responses.close(); responses = null; }
+		snapindex = null;
+		if (entry != null && entry.gray != null) {
+			NJ.log("Using prefetched slice");
+			ipgray = entry.gray;
+		} else try {
+			ipgray = null;
+			ipgray = grayscale(imp.getStack().getProcessor(slice));
+		} catch (OutOfMemoryError e) {
+			NJ.outOfMemory();
+			ipgray = null;
+		}
+		pending = entry;
+		fingerprint = fingerprint(imp.getProcessor());
+		updated = false;
+		bSearched = false;
+		searchid = 0;
+		currSegment.reset();
+		ssmpSegment.reset();
+		bComputedCosts = false;
+		if (pending != null) adopt(false);
+		prefetch(step);
+		if (NJ.ntb.currentTool() == TracingToolbar.ADD && !bComputedCosts) computeCosts();
+		
+		if (NJ.mdg != null) NJ.mdg.reset();
+		if (NJ.adg != null) NJ.adg.reset();
+		IJ.showStatus("Slice "+slice+" of "+slices.length);
+		redraw();
+	}
+	
+	// Prefetches the slices next to the current slice of a stack, the one
+	// in the direction of the given step first, or drops the prefetched
+	// slices if the current image is not a stack:
+	void prefetch(final int step) {
+		
+		if (imp != null && slices.length > 1) NJ.pft.slices(NJ.workdir,imp,slice,step);
+		else NJ.pft.slices(null,null,0,0);
 	}
 	
 	void computeCosts() {
+		if (pending != null) {
+			adopt(true);
+			if (bComputedCosts && costs != null) return;
+		}
 		final Costs ci = new Costs();
 		final long lStartTime = System.currentTimeMillis();
 		try {
-			if (ipgray != null) costs = ci.run(ipgray,(NJ.appear==0),NJ.scale);
-			else throw new OutOfMemoryError();
+			if (ipgray == null) throw new OutOfMemoryError();
+			costs = null; // To free memory before loading or computing new costs
+			if (Costs.lazy(ipgray)) {
+				if (NJ.scales.length > 0) NJ.log("Additional scales are not used for costs computed on demand");
+				costs = ci.lazy(ipgray,(NJ.appear==0),NJ.scale);
+			} else if (NJ.scales.length > 0) {
+				// Multi-scale costs are combined from the responses computed so far:
+				if (responses != null) { responses.close(); responses = null; }
+				if (scalespace == null) scalespace = new ScaleSpace(ipgray);
+				costs = scalespace.costs(NJ.costscales(),(NJ.appear==0));
+			} else if (responses != null && responses.scale == NJ.scale) {
+				// At most the appearance changed, which does not require computing the Hessian again:
+				costs = ci.run(responses,(NJ.appear==0));
+			} else {
+				if (responses != null) { responses.close(); responses = null; }
+				if (NJ.cachesize > 0 && costsdigest == null) costsdigest = CostCache.digest(ipgray);
+				if (costsdigest != null) costs = CostCache.load(NJ.imagename,costsdigest,NJ.appear,NJ.scale);
+				if (costs == null) {
+					ci.retain(true);
+					costs = ci.run(ipgray,(NJ.appear==0),NJ.scale);
+					responses = ci.responses();
+					if (costsdigest != null) CostCache.store(NJ.imagename,costsdigest,NJ.appear,NJ.scale,costs);
+				}
+			}
 			NJ.log("Finished in "+(System.currentTimeMillis()-lStartTime)+" ms");
 			bComputedCosts = true;
 		} catch (OutOfMemoryError e) {
+			costs = null;
+			scalespace = null;
+			if (responses != null) { responses.close(); responses = null; }
+			bComputedCosts = false;
 			NJ.outOfMemory();
 			NJ.ntb.resetTool();
 		}
 		NJ.copyright();
 	}
 	
-	boolean computedCosts() { return bComputedCosts; }
+	boolean computedCosts() { revalidate(); return bComputedCosts; }
 	
 	void doDijkstra() {
-		if (bTracingActive) bDijkstra = true;
+		if (bTracingActive) search();
+	}
+	
+	// Starts computing the shortest paths to the clicked point in the
+	// background. Until they are available, the current segment is
+	// shown as a straight line:
+	private void search() {
+		bSearched = false;
+		searchid = NJ.pse.search(costs,clckPoint);
+		IJ.showStatus("Computing optimal paths");
+	}
+	
+	// Called on the event dispatch thread when the search with the
+	// given id has reached the current point, or has finished:
+	void searched(final int id, final boolean done) {
+		if (id != searchid || !bTracingActive) return;
+		if (done) bSearched = true;
+		NJ.copyright();
+		updateCurrSegment();
+		redraw();
 	}
 	
 	Tracings tracings() { return tracings; }
@@ -1272,7 +1639,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		if (g instanceof Graphics2D) ((Graphics2D)g).setStroke(NJ.tracestroke);
 		
 		// Draw finished tracings:
-		tracings.draw(g,imc);
+		overlay.draw(g,imc,tracings);
 		
 		// Draw currently active tracing and segment:
 		if (bTracingActive) {
@@ -1312,7 +1679,11 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			iXSize = imp.getWidth(); iYSize = imp.getHeight();
 			cp = new ColorProcessor(iXSize,iYSize);
 			cp.setLineWidth(NJ.linewidth);
-			if (snapshotimage) {
+			if (snapshotimage && !(imp.getProcessor() instanceof ByteProcessor)) {
+				// Other images are shown using their display range:
+				final int[] rgbpxs = (int[])imp.getProcessor().convertToRGB().getPixels();
+				System.arraycopy(rgbpxs,0,(int[])cp.getPixels(),0,rgbpxs.length);
+			} else if (snapshotimage) {
 				final ByteProcessor bp = (ByteProcessor)imp.getProcessor();
 				final IndexColorModel icm = (IndexColorModel)bp.getColorModel();
 				final int iMapSize = icm.getMapSize();
@@ -1384,28 +1755,30 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		
 		final int iKeyCode = e.getKeyCode();
 		
-		if (iKeyCode == KeyEvent.VK_C && costs != null && NJ.hkeys) {
+		if ((iKeyCode == KeyEvent.VK_C || iKeyCode == KeyEvent.VK_V) && costs != null && costs.lazy() && NJ.hkeys) {
+			// Showing all costs would compute and keep them all at once:
+			NJ.log("Costs computed on demand cannot be shown");
+			NJ.notify("Costs computed on demand cannot be shown");
+		} else if (iKeyCode == KeyEvent.VK_C && costs != null && NJ.hkeys) {
 			try {
 				NJ.log("Showing tracing cost image");
 				final ByteProcessor ip = new ByteProcessor(iXSize,iYSize);
 				final byte[] pixels = (byte[])ip.getPixels();
 				for (int y=0, i=0; y<iYSize; ++y)
 					for (int x=0; x<iXSize; ++x, ++i)
-						pixels[i] = (byte)costs[0][y][x];
+						pixels[i] = (byte)costs.cost(x,y);
 				final String title = NJ.usename ? (NJ.imagename+"-costs") : (NJ.NAME+": Costs");
 				final ImagePlus tmp = new ImagePlus(title,ip);
 				tmp.show(); tmp.updateAndRepaintWindow();
 			} catch (OutOfMemoryError error) {
 				NJ.outOfMemory();
 			}
-		} else if (iKeyCode == KeyEvent.VK_D && dirsimage != null && NJ.hkeys) {
+		} else if (iKeyCode == KeyEvent.VK_D && bSearched && NJ.hkeys) {
 			try {
 				NJ.log("Showing local directions image");
 				final ByteProcessor ip = new ByteProcessor(iXSize,iYSize);
 				final byte[] pixels = (byte[])ip.getPixels();
-				for (int y=0, i=0; y<iYSize; ++y)
-					for (int x=0; x<iXSize; ++x, ++i)
-						pixels[i] = (byte)(31*(0xFF & dirsimage[y][x]));
+				NJ.pse.directions(searchid,pixels);
 				final String title = NJ.usename ? (NJ.imagename+"-directions") : (NJ.NAME+": Directions");
 				final ImagePlus tmp = new ImagePlus(title,ip);
 				tmp.show(); tmp.updateAndRepaintWindow();
@@ -1419,7 +1792,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				final byte[] pixels = (byte[])ip.getPixels();
 				for (int y=0, i=0; y<iYSize; ++y)
 					for (int x=0; x<iXSize; ++x, ++i)
-						pixels[i] = (byte)(255.0f - costs[0][y][x]);
+						pixels[i] = (byte)(255 - costs.cost(x,y));
 				final String title = NJ.usename ? (NJ.imagename+"-vectors") : (NJ.NAME+": Vectors");
 				final ImagePlus tmp = new ImagePlus(title,ip);
 				tmp.show(); tmp.updateAndRepaintWindow();
@@ -1456,6 +1829,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				--NJ.workimagenr;
 				NJ.log("Request to load image "+NJ.workdir+NJ.workimages[NJ.workimagenr]);
 				NJ.ntb.loadImage(NJ.workdir,NJ.workimages[NJ.workimagenr]);
+				NJ.pft.prefetch(NJ.workdir,NJ.workimages,NJ.workimagenr);
 				NJ.ntb.resetTool();
 			}
 		} else if (iKeyCode == KeyEvent.VK_RIGHT && NJ.workimages != null) {
@@ -1465,8 +1839,15 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				++NJ.workimagenr;
 				NJ.log("Request to load image "+NJ.workdir+NJ.workimages[NJ.workimagenr]);
 				NJ.ntb.loadImage(NJ.workdir,NJ.workimages[NJ.workimagenr]);
+				NJ.pft.prefetch(NJ.workdir,NJ.workimages,NJ.workimagenr);
 				NJ.ntb.resetTool();
 			}
+		} else if (iKeyCode == KeyEvent.VK_COMMA && slices.length > 1) {
+			if (slice <= 1) NJ.notify("The current slice is the first slice");
+			else imp.setSlice(slice-1);
+		} else if (iKeyCode == KeyEvent.VK_PERIOD && slices.length > 1) {
+			if (slice >= slices.length) NJ.notify("The current slice is the last slice");
+			else imp.setSlice(slice+1);
 		} else if (iKeyCode == KeyEvent.VK_ADD || iKeyCode == KeyEvent.VK_EQUALS) {
 			imc.zoomIn(zoomPoint.x,zoomPoint.y);
 			showValue(imc.offScreenX(zoomPoint.x),imc.offScreenY(zoomPoint.y));
@@ -1522,6 +1903,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 						NJ.save = true;
 						currVertex.x += dx;
 						currVertex.y += dy;
+						if (moveTracing != null) moveTracing.moved();
 						movePoint.x += dx;
 						movePoint.y += dy;
 						redraw();
@@ -1573,6 +1955,11 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		
 		switch (NJ.ntb.currentTool()) {
 			case TracingToolbar.ADD: {
+				if (!computedCosts()) {
+					computeCosts();
+					if (costs == null) break;
+					doDijkstra();
+				}
 				final int prevMouseX = mousPoint.x;
 				final int prevMouseY = mousPoint.y;
 				mousPoint.x = x;
@@ -1593,28 +1980,9 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 					snapPoint.x = currPoint.x = mousPoint.x;
 					snapPoint.y = currPoint.y = mousPoint.y;
 					
-					// Update directions map if necessary:
-					if (bDijkstra) {
-						bDijkstra = false;
-						NJ.log("Computing shortest paths to clicked point...");
-						IJ.showStatus("Computing optimal paths");
-						final long lStartTime = System.currentTimeMillis();
-						dirsimage = dijkstra.run(costs,clckPoint);
-						NJ.log("Finished in "+(System.currentTimeMillis()-lStartTime)+" ms");
-						NJ.copyright();
-					}
-					
-					// Compute locally lowest cost point for snapping:
-					int startx = mousPoint.x - NJ.snaprange; if (startx < 1) startx = 1;
-					int starty = mousPoint.y - NJ.snaprange; if (starty < 1) starty = 1;
-					int stopx = mousPoint.x + NJ.snaprange; if (stopx > iXSize-2) stopx = iXSize-2;
-					int stopy = mousPoint.y + NJ.snaprange; if (stopy > iYSize-2) stopy = iYSize-2;
-					for (int sy=starty; sy<=stopy; ++sy)
-						for (int sx=startx; sx<=stopx; ++sx)
-							if (costs[0][sy][sx] < costs[0][snapPoint.y][snapPoint.x]) {
-								snapPoint.x = sx;
-								snapPoint.y = sy;
-							}
+					// Look up locally lowest cost point for snapping:
+					if (snapindex == null || !snapindex.valid(costs,NJ.snaprange)) snapindex = new SnapIndex(costs,NJ.snaprange);
+					snapindex.snap(mousPoint.x,mousPoint.y,snapPoint);
 					
 					// Snap if requested:
 					if (bSnapCursor) {
@@ -1631,30 +1999,10 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			}
 			case TracingToolbar.MOVE: {
 				final Point prevVertex = currVertex;
-				currVertex = null;
 				mouseMovedPoint.x = x;
 				mouseMovedPoint.y = y;
-				double mindist2 = Double.MAX_VALUE;
 				final double NBR2 = 4*NJ.NEARBYRANGE*NJ.NEARBYRANGE;
-				final int nrt = tracings.nrtracings();
-				for (int t=0; t<nrt; ++t) {
-					final Tracing tracing = tracings.get(t);
-					final int nrs = tracing.nrsegments();
-					for (int s=0; s<nrs; ++s) {
-						final Segment segment = tracing.get(s);
-						final int nrp = segment.nrpoints();
-						for (int p=0; p<nrp; ++p) {
-							final Point mpnt = segment.get(p);
-							final double dx = mpnt.x - mouseMovedPoint.x;
-							final double dy = mpnt.y - mouseMovedPoint.y;
-							final double dist2 = dx*dx + dy*dy;
-							if (dist2 < NBR2 && dist2 < mindist2) {
-								currVertex = mpnt;
-								mindist2 = dist2;
-							}
-						}
-					}
-				}
+				currVertex = tracings.vertex(mouseMovedPoint,NBR2);
 				if (currVertex != prevVertex) redraw();
 				break;
 			}
@@ -1662,18 +2010,9 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			case TracingToolbar.ATTRIBS: {
 				mouseMovedPoint.x = x;
 				mouseMovedPoint.y = y;
-				final int nrt = tracings.nrtracings();
-				int tmin = 0; double mindist2 = Double.MAX_VALUE;
-				for (int t=0; t<nrt; ++t) {
-					final Tracing tracing = tracings.get(t);
-					tracing.highlight(false);
-					final double dist2 = tracing.distance2(mouseMovedPoint);
-					if (dist2 < mindist2) { mindist2 = dist2; tmin = t; }
-				}
 				final double NBR2 = NJ.NEARBYRANGE*NJ.NEARBYRANGE;
-				if (mindist2 <= NBR2) tracings.get(tmin).highlight(true);
-				else tmin = -1;
-				if (tracings.changed()) {
+				final int tmin = tracings.nearest(mouseMovedPoint,NBR2);
+				if (tracings.highlight(tmin)) {
 					if (NJ.adg != null) NJ.adg.select(tmin+1);
 					redraw();
 				}
@@ -1701,6 +2040,10 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				break;
 			}
 			case TracingToolbar.ADD: {
+				if (!computedCosts()) {
+					computeCosts();
+					if (costs == null) break;
+				}
 				final long currClckTime = System.currentTimeMillis();
 				final int prevClckX = clckPoint.x;
 				final int prevClckY = clckPoint.y;
@@ -1711,7 +2054,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				if (!bTracingActive) {
 					currTracing = new Tracing();
 					bTracingActive = true;
-					bDijkstra = true;
+					search();
 				} else {
 					finishCurrSegment();
 					if ((currClckTime - lastClckTime < 500) && (prevClckX == clckPoint.x && prevClckY == clckPoint.y))
@@ -1746,6 +2089,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			case TracingToolbar.MOVE: {
 				movePoint.x = imc.offScreenX(x);
 				movePoint.y = imc.offScreenY(y);
+				moveTracing = (currVertex != null) ? tracings.owner(currVertex) : null;
 				break;
 			}
 			case TracingToolbar.ATTRIBS: {
@@ -1788,8 +2132,9 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		}
 		
 		bTracingActive = false;
-		bDijkstra = false;
-		dirsimage = null;
+		NJ.pse.cancel();
+		searchid = 0;
+		bSearched = false;
 	}
 	
 	private void finishCurrSegment() {
@@ -1804,7 +2149,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		}
 		
 		currSegment.reset();
-		bDijkstra = true;
+		search();
 	}
 	
 	private void updateCurrSegment() {
@@ -1813,27 +2158,14 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		
 		if (currPoint.x != clckPoint.x || currPoint.y != clckPoint.y) {
 			
-			// Extract current segment from direction map:
+			// Extract current segment from the search (as long as the
+			// search has not reached the current point, a straight line
+			// is shown):
 			currSegment.add(new Point(currPoint));
-			if (bManualTracing || dirsimage == null) {
+			if (bManualTracing || searchid == 0 || !NJ.pse.trace(searchid,currPoint,currSegment)) {
 				currSegment.add(new Point(clckPoint));
 				currSegment.reverse();
 			} else {
-				final Point pnt = new Point(currPoint);
-				while (pnt.x != clckPoint.x || pnt.y != clckPoint.y) {
-					switch (dirsimage[pnt.y][pnt.x]) {
-						case 0: { pnt.x = clckPoint.x; pnt.y = clckPoint.y; break; }
-						case 1: { --pnt.x; --pnt.y; break; }
-						case 2: { --pnt.y; break; }
-						case 3: { ++pnt.x; --pnt.y; break; }
-						case 4: { --pnt.x; break; }
-						case 5: { ++pnt.x; break; }
-						case 6: { --pnt.x; ++pnt.y; break; }
-						case 7: { ++pnt.y; break; }
-						case 8: { ++pnt.x; ++pnt.y; break; }
-					}
-					currSegment.add(new Point(pnt));
-				}
 				currSegment.reverse();
 				// Smooth and subsample current segment:
 				if (bSmoothSegment) smoothsample();
@@ -1883,15 +2215,25 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		currSegment.add(new Point(pnt));
 	}
 	
-	public void mouseReleased(final MouseEvent e) {}
+	public void mouseReleased(final MouseEvent e) { try {
+		
+		// Update the grid of the tracings for the moved vertex:
+		if (moveTracing != null) {
+			tracings.update(moveTracing);
+			moveTracing = null;
+		}
+		
+	} catch (Throwable x) { NJ.catcher.uncaughtException(Thread.currentThread(),x); } }
 	
 	private void showValue(final int xp, final int yp) {
 		final Calibration cal = NJ.imageplus.getCalibration();
 		ipgray.setCalibrationTable(cal.getCTable());
+		// The raw value of 32-bit images is the same as the value:
+		final String raw = (ipgray instanceof FloatProcessor) ? "" : " ("+ipgray.getPixel(xp,yp)+")";
 		IJ.showStatus(
 			"x="+IJ.d2s(xp*cal.pixelWidth,2)+" ("+xp+"), "+
 			"y="+IJ.d2s(yp*cal.pixelHeight,2)+" ("+yp+"), "+
-			"value="+IJ.d2s(ipgray.getPixelValue(xp,yp),2)+" ("+ipgray.getPixel(xp,yp)+")"
+			"value="+IJ.d2s(ipgray.getPixelValue(xp,yp),2)+raw
 		);
 	}
 	
@@ -1938,7 +2280,8 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			final String[] brtypes = new String[11];
 			final Color[] brtypecolors = new Color[11];
 			final String[] brclusters = new String[11];
-			final Tracings brtracings = new Tracings();
+			final Tracings[] brslices = new Tracings[slices.length];
+			Tracings brtracings = brslices[0] = new Tracings();
 			
 			if (version.compareTo(NJ.VERSION) <= 0) {
 				NJ.log("   Opened "+NJ.NAME+" version "+version+" data file");
@@ -1972,9 +2315,20 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				for (int i=0; i<=10; ++i) brclusters[i] = br.readLine();
 				NJ.log("   Read cluster names");
 				
-				// Tracings
+				// Tracings, preceded by the number of the slice they belong to
+				// if they do not belong to the first slice of a stack (as of
+				// version 1.5.0, which older versions refuse to read):
 				String line = br.readLine();
-				while (line.startsWith("// Tracing")) {
+				while (line.startsWith("// Tracing") || line.startsWith("// Slice")) {
+					if (line.startsWith("// Slice")) {
+						final int brslice = Integer.valueOf(br.readLine()).intValue();
+						if (brslice < 1 || brslice > brslices.length)
+						throw new IllegalStateException("Data file contains tracings for slice "+brslice+" while the image has "+brslices.length+" slice(s)");
+						if (brslices[brslice-1] == null) brslices[brslice-1] = new Tracings();
+						brtracings = brslices[brslice-1];
+						line = br.readLine();
+						continue;
+					}
 					final Tracing tracing = new Tracing();
 					tracing.id(Integer.valueOf(br.readLine()).intValue());
 					tracing.type(Integer.valueOf(br.readLine()).intValue());
@@ -2017,7 +2371,7 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 				NJ.gamma = brgamma;
 			}
 			NJ.snaprange = brsnaprange;
-			NJ.dijkrange = brdijkrange;
+			NJ.dijkrange = Math.min(brdijkrange,NJ.maxdijkrange());
 			NJ.halfsmoothrange = brhalfsmoothrange;
 			NJ.subsamplefactor = brsubsamplefactor;
 			NJ.linewidth = brlinewidth;
@@ -2025,7 +2379,9 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			NJ.types = brtypes;
 			NJ.typecolors = brtypecolors;
 			NJ.clusters = brclusters;
-			tracings = brtracings;
+			slices = brslices;
+			if (slices[slice-1] == null) slices[slice-1] = new Tracings();
+			tracings = slices[slice-1];
 			NJ.log("   Effectuated read data");
 			
 			NJ.log("Done");
@@ -2094,6 +2450,10 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 		} else NJ.log("No need to save current tracings");
 		
 		costs = null; // To free more memory
+		scalespace = null;
+		if (responses != null) { responses.close(); responses = null; }
+		snapindex = null;
+		NJ.pft.slices(null,null,0,0);
 		IJ.showStatus(status);
 	}
 	
@@ -2129,22 +2489,26 @@ final class TracingHandler extends Roi implements KeyListener, MouseListener, Mo
 			for (int i=0; i<nrclusters; ++i) fw.write(NJ.clusters[i]+"\n");
 			NJ.log("   Wrote cluster names");
 			
-			final int nrtracings = tracings.nrtracings();
-			for (int n=0; n<nrtracings; ++n) {
-				final Tracing tracing = tracings.get(n);
-				fw.write("// Tracing N"+tracing.id()+"\n");
-				fw.write(tracing.id()+"\n");
-				fw.write(tracing.type()+"\n");
-				fw.write(tracing.cluster()+"\n");
-				fw.write(tracing.label()+"\n");
-				final int nrsegments = tracing.nrsegments();
-				for (int s=0; s<nrsegments; ++s) {
-					fw.write("// Segment "+(s+1)+" of Tracing N"+tracing.id()+"\n");
-					final Segment segment = tracing.get(s);
-					final int nrpoints = segment.nrpoints();
-					for (int p=0; p<nrpoints; ++p) {
-						final Point pnt = segment.get(p);
-						fw.write(pnt.x+"\n"+pnt.y+"\n");
+			for (int i=0; i<slices.length; ++i) {
+				if (slices[i] == null || slices[i].nrtracings() == 0) continue;
+				if (i > 0) fw.write("// Slice "+(i+1)+"\n"+(i+1)+"\n");
+				final int nrtracings = slices[i].nrtracings();
+				for (int n=0; n<nrtracings; ++n) {
+					final Tracing tracing = slices[i].get(n);
+					fw.write("// Tracing N"+tracing.id()+"\n");
+					fw.write(tracing.id()+"\n");
+					fw.write(tracing.type()+"\n");
+					fw.write(tracing.cluster()+"\n");
+					fw.write(tracing.label()+"\n");
+					final int nrsegments = tracing.nrsegments();
+					for (int s=0; s<nrsegments; ++s) {
+						fw.write("// Segment "+(s+1)+" of Tracing N"+tracing.id()+"\n");
+						final Segment segment = tracing.get(s);
+						final int nrpoints = segment.nrpoints();
+						for (int p=0; p<nrpoints; ++p) {
+							final Point pnt = segment.get(p);
+							fw.write(pnt.x+"\n"+pnt.y+"\n");
+						}
 					}
 				}
 			}
@@ -2710,7 +3074,7 @@ final class AttributesDialog extends Dialog implements ActionListener, FocusList
 				tracings.get(i).highlight(false);
 				tracings.get(i).select(false);
 			}
-			if (index > 0) tracings.get(index-1).highlight(true);
+			tracings.highlight(index-1);
 			NJ.nhd.redraw();
 		}
 	} catch (Throwable x) { NJ.catcher.uncaughtException(Thread.currentThread(),x); } }
@@ -3194,7 +3558,7 @@ final class MeasurementsDialog extends Dialog implements ActionListener, WindowL
 			final int nrtracings = tracings.nrtracings();
 			final int type = typeChoice.getSelectedIndex();
 			final int cluster = clusterChoice.getSelectedIndex();
-			final ByteProcessor bp = NJ.nhd.ipgray;
+			final ImageProcessor bp = NJ.nhd.ipgray;
 			final String cstring = calib ? "calibrated " : "uncalibrated ";
 			final Calibration cal = NJ.imageplus.getCalibration();
 			String su = calib ? new String(cal.getUnit()) : "pixel";
@@ -3415,14 +3779,20 @@ final class MeasurementsDialog extends Dialog implements ActionListener, WindowL
 final class ParametersDialog extends Dialog implements ActionListener, FocusListener, WindowListener {
 	
 	private final TextField scaleField;
+	private final TextField scalesField;
 	private final TextField gammaField;
+	private final TextField cachedirField;
 	
 	private final Choice appearChoice;
 	private final Choice snapChoice;
 	private final Choice dijkChoice;
+	private final Choice searchChoice;
 	private final Choice smoothChoice;
 	private final Choice sampleChoice;
 	private final Choice lineChoice;
+	private final Choice threadsChoice;
+	private final Choice cacheChoice;
+	private final Choice prefetchChoice;
 	
 	private final Checkbox activateCheckbox;
 	private final Checkbox usenameCheckbox;
@@ -3444,6 +3814,13 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 	private static int left = -1;
 	private static int top = -1;
 	
+	private static final int[] cachesizes = { 0, 256, 512, 1024, 2048, 4096, 8192, 16384 };
+	private static final int[] dijksizes = {
+		100, 200, 300, 400, 500, 600, 700, 800, 900, 1000, 1100, 1200, 1300, 1400, 1500, 1600, 1700,
+		1800, 1900, 2000, 2100, 2200, 2300, 2400, 2500, 3000, 4000, 5000, 6000, 8000, 10000, 15000, 20000 };
+	private static final String[] searchmethods = { "Dijkstra", "Dijkstra + A*", "Dijkstra + bidirectional", "Dijkstra + coarse-to-fine" };
+	private static final int[] prefetchsizes = { 0, 128, 256, 512, 1024, 2048, 4096 };
+	
 	// Builds the dialog for setting the parameters.
 	ParametersDialog() {
 		
@@ -3457,6 +3834,7 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		appearChoice.select(NJ.appear);
 		
 		scaleField = addTextField("Hessian smoothing scale:",String.valueOf(NJ.scale));
+		scalesField = addTextField("Additional Hessian scales:",NJ.scales(NJ.scales));
 		gammaField = addTextField("Cost weight factor:",String.valueOf(NJ.gamma));
 		
 		snapChoice = addChoice("Snap window size:");
@@ -3465,9 +3843,17 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		snapChoice.select(NJ.snaprange);
 		
 		dijkChoice = addChoice("Path-search window size:");
-		final int maxdijksize = 2500;
-		for (int i=100; i<=maxdijksize; i+=100) dijkChoice.addItem(i+" x "+i);
-		dijkChoice.select(NJ.dijkrange/100 - 1);
+		int dijkindex = 0;
+		final int maxdijkrange = NJ.maxdijkrange();
+		for (int i=0; i<dijksizes.length && (i == 0 || dijksizes[i] <= maxdijkrange); ++i) {
+			dijkChoice.addItem(dijksizes[i]+" x "+dijksizes[i]);
+			if (dijksizes[i] <= NJ.dijkrange) dijkindex = i;
+		}
+		dijkChoice.select(dijkindex);
+		
+		searchChoice = addChoice("Path-search method:");
+		for (int i=0; i<searchmethods.length; ++i) searchChoice.addItem(searchmethods[i]);
+		searchChoice.select(NJ.pathsearch);
 		
 		smoothChoice = addChoice("Tracing smoothing range:");
 		final int maxsmoothrange = 10;
@@ -3484,6 +3870,34 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		for (int i=1; i<=maxlinewidth; ++i) lineChoice.addItem(String.valueOf(i));
 		lineChoice.select(NJ.linewidth-1);
 		
+		threadsChoice = addChoice("Computation threads:");
+		final int maxthreads = Math.max(Runtime.getRuntime().availableProcessors(),NJ.threads);
+		for (int i=1; i<=maxthreads; ++i) threadsChoice.addItem(String.valueOf(i));
+		threadsChoice.select(NJ.threads-1);
+		
+		cacheChoice = addChoice("Cost cache size:");
+		cacheChoice.addItem("Off");
+		int cacheindex = 0;
+		for (int i=1; i<cachesizes.length; ++i) {
+			final int size = cachesizes[i];
+			cacheChoice.addItem((size < 1024) ? (size+" MB") : ((size/1024)+" GB"));
+			if (size <= NJ.cachesize) cacheindex = i;
+		}
+		cacheChoice.select(cacheindex);
+		
+		cachedirField = addTextField("Cost cache directory:",NJ.cachedir);
+		cachedirField.setColumns(20);
+		
+		prefetchChoice = addChoice("Prefetch memory:");
+		prefetchChoice.addItem("Off");
+		int prefetchindex = 0;
+		for (int i=1; i<prefetchsizes.length; ++i) {
+			final int size = prefetchsizes[i];
+			prefetchChoice.addItem((size < 1024) ? (size+" MB") : ((size/1024)+" GB"));
+			if (size <= NJ.prefetchsize) prefetchindex = i;
+		}
+		prefetchChoice.select(prefetchindex);
+		
 		c.insets = new Insets(22,18,0,18);
 		c.gridx = 0; c.gridy++; c.gridwidth = 2;
 		c.anchor = GridBagConstraints.WEST;
@@ -3632,6 +4046,11 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		NJ.scale = scale;
 		NJ.log("   Hessian smoothing scale = "+NJ.scale+" pixels");
 		
+		final float[] scales = NJ.scales(scalesField.getText());
+		if (!Arrays.equals(scales,NJ.scales)) bScaleChanged = true;
+		NJ.scales = scales;
+		if (NJ.scales.length > 0) NJ.log("   Additional Hessian scales = "+NJ.scales(NJ.scales)+" pixels");
+		
 		float gamma = stringToFloat(gammaField.getText(),0.5f);
 		if (gamma < 0.0f) gamma = 0.0f;
 		else if (gamma > 1.0f) gamma = 1.0f;
@@ -3644,9 +4063,12 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		final int snapwinsize = 2*NJ.snaprange + 1;
 		NJ.log("   Snap window size = "+snapwinsize+" x "+snapwinsize+" pixels");
 		
-		NJ.dijkrange = 100*(dijkChoice.getSelectedIndex() + 1);
+		NJ.dijkrange = dijksizes[dijkChoice.getSelectedIndex()];
 		NJ.log("   Path-search window size = "+NJ.dijkrange+" x "+NJ.dijkrange+" pixels");
 		
+		NJ.pathsearch = searchChoice.getSelectedIndex();
+		NJ.log("   Path-search method = "+searchmethods[NJ.pathsearch]);
+		
 		NJ.halfsmoothrange = smoothChoice.getSelectedIndex();
 		NJ.log("   Tracing smoothing range = "+NJ.halfsmoothrange+" pixels on both sides");
 		
@@ -3657,6 +4079,21 @@ final class ParametersDialog extends Dialog implements ActionListener, FocusList
 		NJ.log("   Line width = "+NJ.linewidth+" pixels");
 		NJ.tracestroke = new BasicStroke(NJ.linewidth,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
 		
+		NJ.threads = threadsChoice.getSelectedIndex() + 1;
+		NJ.log("   Computation threads = "+NJ.threads);
+		
+		NJ.cachesize = cachesizes[cacheChoice.getSelectedIndex()];
+		NJ.cachedir = cachedirField.getText().trim();
+		if (NJ.cachesize > 0) NJ.log("   Cost cache size = "+NJ.cachesize+" MB in "+CostCache.directory());
+		else NJ.log("   Not caching costs");
+		
+		NJ.prefetchsize = prefetchsizes[prefetchChoice.getSelectedIndex()];
+		if (NJ.prefetchsize > 0) NJ.log("   Prefetch memory = "+NJ.prefetchsize+" MB");
+		else NJ.log("   Not prefetching images");
+		if (NJ.prefetchsize > 0) NJ.pft.prefetch(NJ.workdir,NJ.workimages,NJ.workimagenr);
+		else NJ.pft.prefetch(null,null,0);
+		if (NJ.image) NJ.nhd.prefetch(0);
+		
 		NJ.activate = activateCheckbox.getState();
 		if (NJ.activate) NJ.log("   Activating image window when mouse enters");
 		else NJ.log("   Not activating image window when mouse enters");
@@ -3969,10 +4406,10 @@ final class ExportDialog extends Dialog implements ActionListener, WindowListene
 // ***************************************************************************
 final class VectorField extends Roi implements KeyListener {
 	
-	private float[][][] vf;
+	private CostField vf;
 	private static float maxveclen = 1;
 	
-	VectorField(final ImagePlus imp, final float[][][] vf) {
+	VectorField(final ImagePlus imp, final CostField vf) {
 		
 		super(0,0,imp.getWidth(),imp.getHeight());
 		setImage(imp);
@@ -3993,9 +4430,9 @@ final class VectorField extends Roi implements KeyListener {
 			final int ymax = vof.y + vof.height;
 			for (int y=vof.y; y<ymax; ++y)
 				for (int x=vof.x; x<xmax; ++x) {
-					final float scale = (255.0f - vf[0][y][x])*maxveclen*mag/255.0f;
-					final int hvx = (int)(vf[1][y][x]*scale)/2;
-					final int hvy = (int)(vf[2][y][x]*scale)/2;
+					final float scale = (255.0f - vf.cost(x,y))*maxveclen*mag/255.0f;
+					final int hvx = (int)(vf.vx(x,y)*scale)/2;
+					final int hvy = (int)(vf.vy(x,y)*scale)/2;
 					g.drawLine(ic.screenX(x)-hvx+dx,ic.screenY(y)-hvy+dy,ic.screenX(x)+hvx+dx,ic.screenY(y)+hvy+dy);
 				}
 		}
@@ -4016,6 +4453,66 @@ final class VectorField extends Roi implements KeyListener {
 	
 }
 
+// ***************************************************************************
+final class Overlay {
+	
+	// Offscreen image of the finished tracings as drawn on the canvas, so
+	// that repainting the canvas, which happens on every mouse move while
+	// tracing, only has to draw that image. The tracings are drawn into it
+	// again only when the view, the set of tracings, the appearance of any
+	// tracing, or the line width or colors change.
+	
+	private BufferedImage image;
+	private Tracings tracings;
+	private int version;
+	private double mag, scale;
+	private final Rectangle view = new Rectangle();
+	private BasicStroke stroke;
+	private final Color[] colors = new Color[NJ.typecolors.length];
+	
+	void draw(final Graphics g, final ImageCanvas imc, final Tracings tracings) {
+		
+		final Rectangle vof = imc.getSrcRect();
+		final double mag = imc.getMagnification();
+		final int width = imc.getWidth(), height = imc.getHeight();
+		// On high-resolution displays the graphics may be scaled:
+		final double scale = (g instanceof Graphics2D) ? ((Graphics2D)g).getTransform().getScaleX() : 1;
+		final int xsize = (int)Math.ceil(width*scale), ysize = (int)Math.ceil(height*scale);
+		if (!(g instanceof Graphics2D) || xsize <= 0 || ysize <= 0) { tracings.draw(g,imc); return; }
+		
+		boolean valid = (image != null && image.getWidth() == xsize && image.getHeight() == ysize);
+		if (!valid) try {
+			image = null;
+			image = new BufferedImage(xsize,ysize,BufferedImage.TYPE_INT_ARGB);
+		} catch (OutOfMemoryError e) {
+			tracings.draw(g,imc);
+			return;
+		}
+		if (!valid || tracings != this.tracings || tracings.version() != version || mag != this.mag ||
+			scale != this.scale || !vof.equals(view) || NJ.tracestroke != stroke ||
+			!Arrays.equals(NJ.typecolors,colors) || tracings.changed()) {
+			final Graphics2D og = image.createGraphics();
+			og.setComposite(AlphaComposite.Clear);
+			og.fillRect(0,0,xsize,ysize);
+			og.setComposite(AlphaComposite.SrcOver);
+			og.setRenderingHints(((Graphics2D)g).getRenderingHints());
+			og.scale(scale,scale);
+			og.setStroke(NJ.tracestroke);
+			tracings.draw(og,imc);
+			og.dispose();
+			this.tracings = tracings;
+			version = tracings.version();
+			this.mag = mag;
+			this.scale = scale;
+			view.setBounds(vof);
+			stroke = NJ.tracestroke;
+			System.arraycopy(NJ.typecolors,0,colors,0,colors.length);
+		}
+		g.drawImage(image,0,0,width,height,null);
+	}
+	
+}
+
 // ***************************************************************************
 final class Tracings {
 	
@@ -4024,9 +4521,57 @@ final class Tracings {
 	private int iSize = 0;
 	private Tracing[] tarray = new Tracing[iCapacity];
 	
+	// Incremented whenever tracings are added or removed:
+	private int version = 0;
+	
+	// The tracing highlighted by highlight(), if any:
+	private Tracing highlighted = null;
+	
+	// Uniform grid of CELL x CELL pixels over the segments of all tracings,
+	// so that finding the tracings or vertices near a point visits only
+	// the few cells around it. Every point of a segment is registered,
+	// together with the edge from the preceding point, in all cells that
+	// edge passes through. Each tracing keeps the keys of the cells it is
+	// registered in, so that it can be removed from the grid even after
+	// its vertices have been moved:
+	private static final int CELL = 32;
+	private final HashMap<Long,Cell> grid = new HashMap<Long,Cell>();
+	
+	private static final class Cell {
+		Tracing[] tracings = new Tracing[8];
+		int[] segments = new int[8];
+		int[] points = new int[8];
+		int size = 0;
+		
+		void add(final Tracing tracing, final int segment, final int point) {
+			if (size == points.length) {
+				tracings = Arrays.copyOf(tracings,2*size);
+				segments = Arrays.copyOf(segments,2*size);
+				points = Arrays.copyOf(points,2*size);
+			}
+			tracings[size] = tracing;
+			segments[size] = segment;
+			points[size++] = point;
+		}
+		
+		void remove(final Tracing tracing) {
+			int k = 0;
+			for (int i=0; i<size; ++i) if (tracings[i] != tracing) {
+				tracings[k] = tracings[i];
+				segments[k] = segments[i];
+				points[k++] = points[i];
+			}
+			for (int i=k; i<size; ++i) tracings[i] = null;
+			size = k;
+		}
+	}
+	
 	void add(final Tracing tracing) {
 		if (iSize == iCapacity) inccap();
+		tracing.index(iSize);
 		tarray[iSize++] = tracing;
+		register(tracing);
+		++version;
 		NJ.save = true;
 	}
 	
@@ -4040,16 +4585,174 @@ final class Tracings {
 	Tracing get(final int index) { return tarray[index]; }
 	
 	void remove(final int index) {
-		for (int i1=index, i2=index+1; i2<iSize; ++i1, ++i2)
+		unregister(tarray[index]);
+		tarray[index].index(-1);
+		if (tarray[index] == highlighted) highlighted = null;
+		for (int i1=index, i2=index+1; i2<iSize; ++i1, ++i2) {
 			tarray[i1] = tarray[i2];
-		--iSize;
+			tarray[i1].index(i1);
+		}
+		tarray[--iSize] = null;
+		++version;
 		NJ.save = true;
 	}
 	
-	void reset() { iSize = 0; NJ.save = true; }
+	void reset() {
+		for (int i=0; i<iSize; ++i) { tarray[i].cells(null); tarray[i].index(-1); }
+		grid.clear();
+		highlighted = null;
+		iSize = 0;
+		++version;
+		NJ.save = true;
+	}
 	
 	int nrtracings() { return iSize; }
 	
+	int version() { return version; }
+	
+	int indexOf(final Tracing tracing) {
+		final int index = tracing.index();
+		return (index >= 0 && index < iSize && tarray[index] == tracing) ? index : -1;
+	}
+	
+	// Highlights the tracing with the given index, or none if the index
+	// is negative, and removes the highlight from the tracing highlighted
+	// before. Returns whether any highlight has changed:
+	boolean highlight(final int index) {
+		final Tracing tracing = (index >= 0) ? tarray[index] : null;
+		boolean changed = false;
+		if (highlighted != null && highlighted != tracing && highlighted.highlighted()) {
+			highlighted.highlight(false);
+			changed = true;
+		}
+		if (tracing != null && !tracing.highlighted()) {
+			tracing.highlight(true);
+			changed = true;
+		}
+		highlighted = tracing;
+		return changed;
+	}
+	
+	// Registers the given tracing again after its vertices have been moved:
+	void update(final Tracing tracing) {
+		if (indexOf(tracing) < 0) return;
+		unregister(tracing);
+		register(tracing);
+	}
+	
+	// Returns the index of the tracing closest to the given point, if its
+	// squared distance is at most the given squared distance, or -1. Of
+	// tracings equally close, the first is returned:
+	int nearest(final Point point, final double range2) {
+		final int[] c = cells(point,range2);
+		Tracing nearest = null; double mindist2 = Double.MAX_VALUE;
+		for (int cy=c[1]; cy<=c[3]; ++cy)
+			for (int cx=c[0]; cx<=c[2]; ++cx) {
+				final Cell cell = grid.get(key(cx,cy));
+				if (cell != null) for (int i=0; i<cell.size; ++i) {
+					final Tracing tracing = cell.tracings[i];
+					final double dist2 = tracing.get(cell.segments[i]).distance2(point,cell.points[i]);
+					if (dist2 < mindist2 || (dist2 == mindist2 && tracing != nearest && indexOf(tracing) < indexOf(nearest))) {
+						nearest = tracing;
+						mindist2 = dist2;
+					}
+				}
+			}
+		return (mindist2 <= range2) ? indexOf(nearest) : -1;
+	}
+	
+	// Returns the vertex closest to the given point, if its squared
+	// distance is less than the given squared distance, or null. Of
+	// vertices equally close, the first in the order of the tracings and
+	// their segments is returned:
+	Point vertex(final Point point, final double range2) {
+		final int[] c = cells(point,range2);
+		Point vertex = null; double mindist2 = range2;
+		int tmin = -1, smin = 0, pmin = 0;
+		for (int cy=c[1]; cy<=c[3]; ++cy)
+			for (int cx=c[0]; cx<=c[2]; ++cx) {
+				final Cell cell = grid.get(key(cx,cy));
+				if (cell != null) for (int i=0; i<cell.size; ++i) {
+					final Point vpnt = cell.tracings[i].get(cell.segments[i]).get(cell.points[i]);
+					final double dx = vpnt.x - point.x;
+					final double dy = vpnt.y - point.y;
+					final double dist2 = dx*dx + dy*dy;
+					if (dist2 > mindist2 || (dist2 == mindist2 && vertex == null)) continue;
+					final int t = indexOf(cell.tracings[i]), sg = cell.segments[i], pt = cell.points[i];
+					if (dist2 == mindist2 && (t > tmin || (t == tmin && (sg > smin || (sg == smin && pt >= pmin))))) continue;
+					vertex = vpnt;
+					mindist2 = dist2;
+					tmin = t; smin = sg; pmin = pt;
+				}
+			}
+		return vertex;
+	}
+	
+	// Returns the tracing having the given vertex, or null:
+	Tracing owner(final Point vertex) {
+		final Cell cell = grid.get(key(cell(vertex.x),cell(vertex.y)));
+		if (cell != null) for (int i=0; i<cell.size; ++i)
+			if (cell.tracings[i].get(cell.segments[i]).get(cell.points[i]) == vertex) return cell.tracings[i];
+		return null;
+	}
+	
+	private void register(final Tracing tracing) {
+		long[] keys = new long[16];
+		int nrkeys = 0;
+		final int nrs = tracing.nrsegments();
+		for (int s=0; s<nrs; ++s) {
+			final Segment segment = tracing.get(s);
+			final int nrp = segment.nrpoints();
+			for (int p=0; p<nrp; ++p) {
+				Point a = segment.get(Math.max(0,p-1)), b = segment.get(p);
+				if (a.x > b.x) { final Point tmp = a; a = b; b = tmp; }
+				// Cells passed through by the edge, column by column:
+				for (int cx=cell(a.x); cx<=cell(b.x); ++cx) {
+					final int xa = Math.max(a.x,cx*CELL), xb = Math.min(b.x,(cx+1)*CELL);
+					final double slope = (a.x != b.x) ? (b.y - a.y)/(double)(b.x - a.x) : 0;
+					final double ya = (xa == a.x) ? a.y : a.y + (xa - a.x)*slope;
+					final double yb = (xb == b.x) ? b.y : a.y + (xb - a.x)*slope;
+					final int cy1 = cell(Math.max(ya,yb));
+					for (int cy=cell(Math.min(ya,yb)); cy<=cy1; ++cy) {
+						final long key = key(cx,cy);
+						Cell cell = grid.get(key);
+						if (cell == null) grid.put(key,cell = new Cell());
+						cell.add(tracing,s,p);
+						if (nrkeys == 0 || keys[nrkeys-1] != key) {
+							if (nrkeys == keys.length) keys = Arrays.copyOf(keys,2*nrkeys);
+							keys[nrkeys++] = key;
+						}
+					}
+				}
+			}
+		}
+		tracing.cells(Arrays.copyOf(keys,nrkeys));
+	}
+	
+	private void unregister(final Tracing tracing) {
+		final long[] keys = tracing.cells();
+		if (keys == null) return;
+		for (int k=0; k<keys.length; ++k) {
+			final Cell cell = grid.get(keys[k]);
+			if (cell != null) {
+				cell.remove(tracing);
+				if (cell.size == 0) grid.remove(keys[k]);
+			}
+		}
+		tracing.cells(null);
+	}
+	
+	// Returns the range { lowx, lowy, highx, highy } of the cells within
+	// the given squared distance (plus a margin) of the given point:
+	private static int[] cells(final Point point, final double range2) {
+		final double range = Math.sqrt(range2) + 1;
+		return new int[] { cell(point.x - range), cell(point.y - range), cell(point.x + range), cell(point.y + range) };
+	}
+	
+	private static int cell(final double c) { return (int)Math.floor(c/CELL); }
+	
+	private static long key(final int cx, final int cy) { return ((long)cx << 32) | (cy & 0xFFFFFFFFL); }
+	
 	boolean changed() {
 		for (int w=0; w<iSize; ++w)
 			if (tarray[w].changed()) return true;
@@ -4081,6 +4784,11 @@ final class Tracing {
 	private static int lastID = 0;
 	private int ID;
 	
+	// Keys of the grid cells the tracing is registered in by Tracings,
+	// and its index there:
+	private long[] cells = null;
+	private int index = -1;
+	
 	Tracing() {
 		ID = ++lastID;
 		sarray = new Segment[iCapacity];
@@ -4124,16 +4832,21 @@ final class Tracing {
 		return length;
 	}
 	
-	double distance2(final Point point) {
-		double mindist2 = Double.MAX_VALUE;
-		for (int s=0; s<iSize; ++s) {
-			final double dist2 = sarray[s].distance2(point);
-			if (dist2 < mindist2) mindist2 = dist2;
-		}
-		return mindist2;
+	long[] cells() { return cells; }
+	
+	// Called when vertices of the tracing have been moved:
+	void moved() {
+		for (int s=0; s<iSize; ++s) sarray[s].bound();
+		changed = true;
 	}
 	
-	void values(final ByteProcessor bp, final Values values) {
+	void cells(final long[] cells) { this.cells = cells; }
+	
+	int index() { return index; }
+	
+	void index(final int index) { this.index = index; }
+	
+	void values(final ImageProcessor bp, final Values values) {
 		for (int s=0; s<iSize; ++s)
 			sarray[s].values(bp,values);
 		final Point last = sarray[iSize-1].last();
@@ -4204,6 +4917,20 @@ final class Segment {
 	private int iSize = 0;
 	private Point[] parray = null;
 	
+	// Bounding box of the points, used for skipping segments outside the view:
+	private int minx = Integer.MAX_VALUE, miny = Integer.MAX_VALUE;
+	private int maxx = Integer.MIN_VALUE, maxy = Integer.MIN_VALUE;
+	
+	// Simplified versions of the segment for drawing at magnifications
+	// below 1, one per zoom bucket, holding the indices of the points
+	// kept. Bucket b covers magnifications below 1/2^(b-1) down to 1/2^b,
+	// where a screen pixel spans 2^(b-1) to 2^b image pixels, and allows
+	// points to deviate 2^(b-2) image pixels, or at most half a screen
+	// pixel, from the simplified line. The versions are computed when
+	// first needed and discarded whenever the points change:
+	private static final int LODS = 12;
+	private int[][] lods = null;
+	
 	Segment() {
 		parray = new Point[iCapacity];
 	}
@@ -4216,6 +4943,23 @@ final class Segment {
 	void add(final Point point) {
 		if (iSize == iCapacity) inccap();
 		parray[iSize++] = point;
+		include(point);
+	}
+	
+	private void include(final Point point) {
+		lods = null;
+		if (point.x < minx) minx = point.x;
+		if (point.x > maxx) maxx = point.x;
+		if (point.y < miny) miny = point.y;
+		if (point.y > maxy) maxy = point.y;
+	}
+	
+	// Computes the bounding box again, which is needed after points have been moved:
+	void bound() {
+		lods = null;
+		minx = miny = Integer.MAX_VALUE;
+		maxx = maxy = Integer.MIN_VALUE;
+		for (int i=0; i<iSize; ++i) include(parray[i]);
 	}
 	
 	private void inccap() {
@@ -4227,11 +4971,11 @@ final class Segment {
 	
 	Point first() { return parray[0]; }
 	
-	void first(final Point point) { parray[0] = point; }
+	void first(final Point point) { parray[0] = point; include(point); }
 	
 	Point last() { return parray[iSize-1]; }
 	
-	void last(final Point point) { parray[iSize-1] = point; }
+	void last(final Point point) { parray[iSize-1] = point; include(point); }
 	
 	Point get(final int index) { return parray[index]; }
 	
@@ -4242,13 +4986,14 @@ final class Segment {
 	
 	int nrpoints() { return iSize; }
 	
-	void reset() { iSize = 0; }
+	void reset() { iSize = 0; bound(); }
 	
 	Segment duplicate() {
 		final Segment segment = new Segment(iCapacity);
 		segment.iSize = iSize;
 		for (int i=0; i<iSize; ++i)
 			segment.parray[i] = new Point(parray[i].x,parray[i].y);
+		segment.bound();
 		return segment;
 	}
 	
@@ -4264,17 +5009,14 @@ final class Segment {
 		return length;
 	}
 	
-	double distance2(final Point point) {
-		double mindist2 = Double.MAX_VALUE;
-		// Minimum distance to vertices:
-		for (int i=0; i<iSize; ++i) {
-			final double dx = point.x - parray[i].x;
-			final double dy = point.y - parray[i].y;
-			final double dist2 = dx*dx + dy*dy;
-			if (dist2 < mindist2) mindist2 = dist2;
-		}
-		// Minimum distance to edges:
-		for (int i=1, im1=0; i<iSize; ++i, ++im1) {
+	// Returns the squared distance of the given point to the vertex with
+	// the given index or the edge from the preceding vertex:
+	double distance2(final Point point, final int i) {
+		final double dx = point.x - parray[i].x;
+		final double dy = point.y - parray[i].y;
+		double mindist2 = dx*dx + dy*dy;
+		if (i > 0) {
+			final int im1 = i - 1;
 			final double v12x = parray[i].x - parray[im1].x;
 			final double v12y = parray[i].y - parray[im1].y;
 			final double v13x = point.x - parray[im1].x;
@@ -4292,7 +5034,7 @@ final class Segment {
 		return mindist2;
 	}
 	
-	void values(final ByteProcessor bp, final Values values) {
+	void values(final ImageProcessor bp, final Values values) {
 		final int ssfactor = NJ.interpolate ? NJ.subsamplefactor : 1;
 		for (int i=1, im1=0; i<iSize; ++i, ++im1) {
 			final double dx = (parray[i].x - parray[im1].x)/ssfactor;
@@ -4306,6 +5048,7 @@ final class Segment {
 	}
 	
 	void reverse() {
+		lods = null;
 		final int iHalf = iSize/2;
 		for (int b=0, e=iSize-1; b<iHalf; ++b, --e) {
 			final Point tmp = parray[b]; parray[b] = parray[e]; parray[e] = tmp;
@@ -4317,17 +5060,85 @@ final class Segment {
 		final double mag = imc.getMagnification();
 		final int dx = (int)(mag/2.0);
 		final int dy = (int)(mag/2.0);
+		// Skip the segment, or edges, entirely outside the view, allowing
+		// for the width of the lines:
+		final int margin = (int)(NJ.linewidth/mag) + 1;
+		final int lx = vof.x - margin, hx = vof.x + vof.width + margin;
+		final int ly = vof.y - margin, hy = vof.y + vof.height + margin;
+		if (maxx < lx || minx > hx || maxy < ly || miny > hy) return;
 		g.setColor(color);
-		if (iSize > 1) for (int i=1; i<iSize; ++i) {
+		if (iSize < 2) return;
+		final int[] lod = lod(mag);
+		final int nrpoints = (lod == null) ? iSize : lod.length;
+		for (int i=1; i<nrpoints; ++i) {
+			final Point p0 = parray[lod == null ? i-1 : lod[i-1]];
+			final Point p1 = parray[lod == null ? i : lod[i]];
+			if ((p0.x < lx && p1.x < lx) || (p0.x > hx && p1.x > hx) ||
+				(p0.y < ly && p1.y < ly) || (p0.y > hy && p1.y > hy)) continue;
 			g.drawLine(
-				dx + (int)((parray[i].x - vof.x)*mag),
-				dy + (int)((parray[i].y - vof.y)*mag),
-				dx + (int)((parray[i-1].x - vof.x)*mag),
-				dy + (int)((parray[i-1].y - vof.y)*mag)
+				dx + (int)((p1.x - vof.x)*mag),
+				dy + (int)((p1.y - vof.y)*mag),
+				dx + (int)((p0.x - vof.x)*mag),
+				dy + (int)((p0.y - vof.y)*mag)
 			);
 		}
 	}
 	
+	// Returns the indices of the points to draw at the given magnification,
+	// or null if all points are to be drawn:
+	private int[] lod(final double mag) {
+		if (mag >= 1 || iSize < 3) return null;
+		int bucket = 1;
+		for (double m=0.5; m > mag && bucket < LODS; m *= 0.5) ++bucket;
+		if (lods == null) lods = new int[LODS+1][];
+		if (lods[bucket] == null) lods[bucket] = simplify(0.5*(1 << (bucket-1)));
+		return lods[bucket];
+	}
+	
+	// Douglas-Peucker simplification with the given tolerance in image
+	// pixels. An explicit stack of index ranges is used instead of
+	// recursion, as segments may have many thousands of points:
+	private int[] simplify(final double tolerance) {
+		final boolean[] keep = new boolean[iSize];
+		keep[0] = keep[iSize-1] = true;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0; stack[top++] = iSize-1;
+		final double tol2 = tolerance*tolerance;
+		while (top > 0) {
+			final int e = stack[--top], b = stack[--top];
+			if (e - b < 2) continue;
+			final Point pb = parray[b], pe = parray[e];
+			final double vx = pe.x - pb.x, vy = pe.y - pb.y;
+			final double vlen2 = vx*vx + vy*vy;
+			double maxdist2 = -1;
+			int maxi = b;
+			for (int i=b+1; i<e; ++i) {
+				final double wx = parray[i].x - pb.x, wy = parray[i].y - pb.y;
+				final double inprod = vx*wx + vy*wy;
+				double dist2 = wx*wx + wy*wy;
+				if (inprod > 0) {
+					if (inprod >= vlen2) {
+						final double ux = parray[i].x - pe.x, uy = parray[i].y - pe.y;
+						dist2 = ux*ux + uy*uy;
+					} else dist2 -= inprod*inprod/vlen2;
+				}
+				if (dist2 > maxdist2) { maxdist2 = dist2; maxi = i; }
+			}
+			if (maxdist2 > tol2) {
+				keep[maxi] = true;
+				if (top + 4 > stack.length) stack = Arrays.copyOf(stack,2*stack.length);
+				stack[top++] = b; stack[top++] = maxi;
+				stack[top++] = maxi; stack[top++] = e;
+			}
+		}
+		int nrkept = 0;
+		for (int i=0; i<iSize; ++i) if (keep[i]) ++nrkept;
+		final int[] indices = new int[nrkept];
+		for (int i=0, k=0; i<iSize; ++i) if (keep[i]) indices[k++] = i;
+		return indices;
+	}
+	
 }
 
 // ***************************************************************************
@@ -4391,51 +5202,335 @@ final class Values {
 }
 
 // ***************************************************************************
-final class Dijkstra {
+final class PathSearcher implements Runnable {
 	
-	private final int INFINITE = 2147483647;
-	private final int PROCESSED = 2147483647;
-	private final int FREE = 2147483646;
+	// Computes the shortest paths to a clicked point on a background
+	// thread, so that the event dispatch thread is never blocked by the
+	// search. The search is expanded in chunks, and as soon as the point
+	// the handler asked for is reached, the handler is notified so that
+	// it can trace the path. Expansion then continues in the background
+	// until the whole window is done. A new request abandons any search
+	// still running. Notifications are passed to the tracing handler on
+	// the event dispatch thread, with the id of the request they belong
+	// to.
 	
-	private int[] ccost = null;
-	private int[] istat = null;
-	private byte[][] dirs = null;
-	
-	// Computes the shortest path based on the given cost values and
-	// vectors. The first index is the image index: element 0 contains
-	// the cost image, element 1 the x-component of the vector field,
-	// and element 2 the y-component of the vector field. The second and
-	// third index correspond to, respectively, the y- and x-coordinate.
-	//
-	// The returned image contains for every pixel the direction to the
-	// predecessing pixel along the shortest path. The first index is
-	// the y-coordinate and the second the x-coordinate. Note that if in
-	// a series of calls to this method the cost image keeps the same
-	// dimensions, the returned handle will be the same for every
-	// call. That is to say, the directions image is reallocated only
-	// when the cost image changes dimensions. Otherwise it is reused in
-	// order to gain speed. The direction values should be interpreted
-	// as follows:
-	//
-	// 0 = go directly to starting point
-	// 1 = go one up, one left
-	// 2 = go one up
-	// 3 = go one up, one right
-	// 4 = go one left
-	// 5 = go one right
-	// 6 = go one down, one left
-	// 7 = go one down
-	// 8 = go one down, one right
-	//
-	byte[][] run(final float[][][] costvector, final Point startpoint) {
-		
-		// Initialize variables and handles:
-		final float[][] costimage = costvector[0];
-		final float[][] costfieldx = costvector[1];
-		final float[][] costfieldy = costvector[2];
+	private static final int CHUNK = 16384;
+	
+	private static final String[] searches = { "Dijkstra", "A*", "bidirectional search", "coarse-to-fine search" };
+	
+	private final Dijkstra dijkstra = new Dijkstra();
+	private final AStar astar = new AStar();
+	private final Bidirectional bidirectional = new Bidirectional();
+	private final Pyramid pyramid = new Pyramid();
+	
+	// Paths found by A*, bidirectional or coarse-to-fine search for the
+	// last few targets of the active search, stored as x,y pairs from the
+	// target (exclusive) to the start point, and whether they are
+	// shortest paths:
+	private final int[] goals = new int[8];
+	private final int[][] paths = new int[8][];
+	private final boolean[] exact = new boolean[8];
+	private int lastgoal = 0;
+	
+	private CostField costs = null;
+	private final Point start = new Point();
+	private int requested = 0;
+	private int started = 0;
+	private int active = 0;
+	private boolean expanding = false;
+	private final Point target = new Point();
+	private int targetid = 0;
+	private boolean quit = false;
+	
+	PathSearcher() {
+		
+		final Thread thread = new Thread(this,NJ.NAME+" Path Searcher");
+		thread.setUncaughtExceptionHandler(NJ.catcher);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// Requests the shortest paths to the given point and returns the id of the request:
+	synchronized int search(final CostField costs, final Point start) {
 		
-		final int iYSize = costimage.length;
-		final int iXSize = costimage[0].length;
+		this.costs = costs;
+		this.start.setLocation(start);
+		abandon(true);
+		++requested;
+		notifyAll();
+		return requested;
+	}
+	
+	// Abandons any pending or running search:
+	synchronized void cancel() {
+		
+		costs = null;
+		abandon(true);
+		started = ++requested;
+		active = 0;
+		expanding = false;
+	}
+	
+	synchronized void quit() {
+		
+		cancel();
+		quit = true;
+		notifyAll();
+	}
+	
+	// Adds to the given segment the path from the given point to the
+	// start point of the search with the given id, if the search has
+	// already reached the point. Otherwise the point becomes the target
+	// of the search, the handler is notified when it has been reached,
+	// and false is returned:
+	boolean trace(final int id, final Point point, final Segment segment) {
+		
+		synchronized (dijkstra) {
+			final int[] path;
+			synchronized (this) {
+				final boolean current = (id == active);
+				final boolean settled = current && dijkstra.settled(point.x,point.y);
+				path = current ? cached(point.x,point.y,settled) : null;
+				if (path == null && !settled) {
+					if (targetid != id || !target.equals(point)) abandon(true);
+					target.setLocation(point);
+					targetid = id;
+					notifyAll();
+					return false;
+				}
+			}
+			if (path != null) {
+				for (int k=0; k<path.length; k+=2) segment.add(new Point(path[k],path[k+1]));
+				return true;
+			}
+			final Point pnt = new Point(point);
+			while (pnt.x != start.x || pnt.y != start.y) {
+				switch (dijkstra.direction(pnt.x,pnt.y)) {
+					case 0: { pnt.x = start.x; pnt.y = start.y; break; }
+					case 1: { --pnt.x; --pnt.y; break; }
+					case 2: { --pnt.y; break; }
+					case 3: { ++pnt.x; --pnt.y; break; }
+					case 4: { --pnt.x; break; }
+					case 5: { ++pnt.x; break; }
+					case 6: { --pnt.x; ++pnt.y; break; }
+					case 7: { ++pnt.y; break; }
+					case 8: { ++pnt.x; ++pnt.y; break; }
+				}
+				segment.add(new Point(pnt));
+			}
+			return true;
+		}
+	}
+	
+	public void run() {
+		
+		long lStartTime = 0;
+		Point origin = null;
+		CostField origincosts = null;
+		while (true) {
+			int id = 0;
+			CostField runcosts = null;
+			Point runstart = null;
+			synchronized (this) {
+				while (!quit && started == requested && !expanding)
+				try { wait(); } catch (InterruptedException e) { return; }
+				if (quit) return;
+				if (started != requested) {
+					started = id = requested;
+					runcosts = costs;
+					runstart = new Point(start);
+					expanding = false;
+				} else id = active;
+			}
+			try {
+				if (runcosts != null) {
+					NJ.log("Computing shortest paths to point ("+runstart.x+","+runstart.y+")...");
+					lStartTime = System.currentTimeMillis();
+					// Make sure the costs in the window are present before
+					// locking out the tracing handler:
+					if (runcosts.lazy()) {
+						final int[] window = Dijkstra.window(runcosts,runstart);
+						runcosts.prepare(window[0] - 1,window[1] - 1,window[2] + 1,window[3] + 1);
+					}
+					synchronized (dijkstra) {
+						dijkstra.start(runcosts,runstart);
+						synchronized (this) {
+							if (id != requested) continue;
+							active = id;
+							expanding = true;
+							for (int g=0; g<goals.length; ++g) { goals[g] = -1; paths[g] = null; }
+						}
+					}
+					origin = runstart;
+					origincosts = runcosts;
+				} else if (runstart != null) continue;
+				
+				// Serve targets not yet reached by Dijkstra using A*,
+				// bidirectional or coarse-to-fine search:
+				Point goal = null;
+				final int method = NJ.pathsearch;
+				if (method != NJ.DIJKSTRA) synchronized (dijkstra) {
+					synchronized (this) {
+						if (id != active) continue;
+						if (targetid == id && !dijkstra.settled(target.x,target.y) && cached(target.x,target.y,false) == null) {
+							goal = new Point(target);
+							abandon(false);
+						}
+					}
+				}
+				if (goal != null) {
+					final long lGoalTime = System.currentTimeMillis();
+					final int[] path;
+					switch (method) {
+						case NJ.ASTAR: path = astar.run(dijkstra.weights(),dijkstra.window(),origin,goal); break;
+						case NJ.BIDIRECTIONAL: path = bidirectional.run(dijkstra.weights(),dijkstra.window(),origin,goal); break;
+						default: path = pyramid.run(origincosts,dijkstra.weights(),dijkstra.window(),origin,goal); break;
+					}
+					boolean found = false;
+					synchronized (this) {
+						if (path != null && id == active) {
+							lastgoal = (lastgoal + 1) % goals.length;
+							goals[lastgoal] = goal.y*dijkstra.xsize() + goal.x;
+							paths[lastgoal] = path;
+							exact[lastgoal] = (method != NJ.PYRAMID);
+							if (targetid == id && target.equals(goal)) { targetid = 0; found = true; }
+						}
+					}
+					if (found) {
+						NJ.log("Found path to ("+goal.x+","+goal.y+") by "+searches[method]+" in "+(System.currentTimeMillis()-lGoalTime)+" ms");
+						report(id,false);
+					}
+					continue;
+				}
+				
+				boolean more, reached = false;
+				synchronized (dijkstra) {
+					int vtarget = -1;
+					synchronized (this) {
+						if (id != active) continue;
+						if (targetid == id) vtarget = target.y*dijkstra.xsize() + target.x;
+					}
+					more = dijkstra.expand(vtarget,CHUNK);
+					if (vtarget >= 0 && dijkstra.settled(vtarget)) synchronized (this) {
+						if (targetid == id && target.y*dijkstra.xsize() + target.x == vtarget) { targetid = 0; reached = true; }
+					}
+					if (!more) synchronized (this) {
+						if (id != active) continue;
+						expanding = false;
+					}
+				}
+				if (reached) NJ.log("Reached target after "+(System.currentTimeMillis()-lStartTime)+" ms");
+				if (!more) NJ.log("Finished in "+(System.currentTimeMillis()-lStartTime)+" ms");
+				if (reached || !more) report(id,!more);
+				
+			} catch (OutOfMemoryError e) {
+				synchronized (this) { if (id == active) { active = 0; expanding = false; } }
+				EventQueue.invokeLater(new Runnable() {
+					public void run() { NJ.outOfMemory(); }
+				});
+			} catch (Throwable e) {
+				synchronized (this) { if (id == active) { active = 0; expanding = false; } }
+				NJ.catcher.uncaughtException(Thread.currentThread(),e);
+			}
+		}
+	}
+	
+	// Fills the given image with the directions map of the search with
+	// the given id, if that search is still current:
+	boolean directions(final int id, final byte[] pixels) {
+		
+		synchronized (dijkstra) {
+			synchronized (this) { if (id != active) return false; }
+			final int nrpixels = pixels.length;
+			for (int i=0; i<nrpixels; ++i) pixels[i] = (byte)(31*dijkstra.direction(i));
+			return true;
+		}
+	}
+	
+	// Sets whether running goal searches should be abandoned:
+	private void abandon(final boolean cancel) {
+		
+		astar.cancel(cancel);
+		bidirectional.cancel(cancel);
+		pyramid.cancel(cancel);
+	}
+	
+	// Returns the path found by A*, bidirectional or coarse-to-fine
+	// search to the given point, or null if there is none. Once the
+	// point is settled by Dijkstra, a coarse-to-fine path, which need not
+	// be the shortest, is not returned, so that the traced path does not
+	// depend on whether the point was asked for before it was reached:
+	private int[] cached(final int x, final int y, final boolean settled) {
+		
+		final int index = y*dijkstra.xsize() + x;
+		for (int g=0; g<goals.length; ++g) if (goals[g] == index) return (settled && !exact[g]) ? null : paths[g];
+		return null;
+	}
+	
+	private void report(final int id, final boolean done) {
+		
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				try { if (NJ.nhd != null) NJ.nhd.searched(id,done); }
+				catch (Throwable e) { NJ.catcher.uncaughtException(Thread.currentThread(),e); }
+			}
+		});
+	}
+	
+}
+
+// ***************************************************************************
+final class Dijkstra {
+	
+	// Flag in the directions map marking pixels whose shortest path is final:
+	private final int PROCESSED = 16;
+	
+	private int[] ccost = null;
+	private byte[] dirs = null;
+	
+	// The state of a pixel is valid for the current search only if its
+	// stamp equals the current generation. This way, starting a search
+	// does not require a sweep over the image, and only the pixels
+	// visited by the search are initialized:
+	private int[] stamp = null;
+	private int generation = 0;
+	
+	// State of the search in progress:
+	private CostField costs = null;
+	private int iXSize = 0;
+	private int iLX = 0, iLY = 0, iHX = -1, iHY = -1, iWX = 0;
+	private EdgeWeights weights = null;
+	private final int[] rpos = new int[9];
+	private final BucketQueue queue = new BucketQueue(256);
+	private int cindex = 0;
+	private boolean bQueue = false;
+	
+	// Starts computing the shortest paths based on the given cost values
+	// and vectors. The search is carried out by subsequent calls to
+	// expand(), and the result for any pixel is final once settled()
+	// returns true for it.
+	//
+	// The direction() method gives for every pixel the direction to the
+	// predecessing pixel along the shortest path. The arrays holding the
+	// state of the search cover only the window and are reallocated only
+	// when a larger window is needed. Otherwise they are reused in order
+	// to gain speed. The direction values should be interpreted as follows:
+	//
+	// 0 = go directly to starting point
+	// 1 = go one up, one left
+	// 2 = go one up
+	// 3 = go one up, one right
+	// 4 = go one left
+	// 5 = go one right
+	// 6 = go one down, one left
+	// 7 = go one down
+	// 8 = go one down, one right
+	//
+	void start(final CostField costs, final Point startpoint) {
+		
+		// Initialize variables:
+		final int iYSize = costs.ysize();
+		final int iXSize = costs.xsize();
 		final int iYSizem1 = iYSize - 1;
 		final int iXSizem1 = iXSize - 1;
 		
@@ -4443,261 +5538,2901 @@ final class Dijkstra {
 		final int iStartX = startpoint.x;
 		if (iStartY <= 0 || iStartY >= iYSizem1 || iStartX <= 0 || iStartX >= iXSizem1)
 			throw new IllegalArgumentException("Starting point on or outside border of image");
-		final int vstart = iStartY*iXSize + iStartX;
 		
-		final int iNrPixels = iYSize*iXSize;
-		if (dirs == null || dirs.length != iYSize || dirs[0].length != iXSize) {
-			dirs = new byte[iYSize][iXSize];
+		// Determine window (border pixels and pixels outside the window
+		// are not visited by the search):
+		final int[] window = window(costs,startpoint);
+		final int iLX = this.iLX = window[0];
+		final int iLY = this.iLY = window[1];
+		final int iHX = this.iHX = window[2];
+		final int iHY = this.iHY = window[3];
+		final int iWX = this.iWX = iHX - iLX + 1;
+		final int vstart = (iStartY - iLY)*iWX + (iStartX - iLX);
+		
+		final int iNrPixels = iWX*(iHY - iLY + 1);
+		if (dirs == null || dirs.length < iNrPixels) {
+			dirs = null; ccost = null; stamp = null;
+			dirs = new byte[iNrPixels];
 			ccost = new int[iNrPixels];
-			istat = new int[iNrPixels];
-		}
-		
-		// Mask border pixels and pixels outside window:
-		final int iXSizem2 = iXSize - 2;
-		final int iYSizem2 = iYSize - 2;
-		int iLX = 1; int iLY = 1;
-		int iHX = iXSizem2; int iHY = iYSizem2;
-		final int iHalfWinSize = NJ.dijkrange/2;
-		if (NJ.dijkrange < iXSizem2) {
-			iLX = iStartX - iHalfWinSize;
-			iHX = iStartX + iHalfWinSize;
-			if (iLX < 1) { iLX = 1; iHX = NJ.dijkrange; }
-			if (iHX > iXSizem2) { iHX = iXSizem2; iLX = iXSizem1 - NJ.dijkrange; }
+			stamp = new int[iNrPixels];
+			generation = 0;
 		}
-		if (NJ.dijkrange < iYSizem2) {
-			iLY = iStartY - iHalfWinSize;
-			iHY = iStartY + iHalfWinSize;
-			if (iLY < 1) { iLY = 1; iHY = NJ.dijkrange; }
-			if (iHY > iYSizem2) { iHY = iYSizem2; iLY = iYSizem1 - NJ.dijkrange; }
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamp,0);
+			generation = 1;
 		}
-		for (int y=0, i=0; y<iLY; ++y)
-			for (int x=0; x<iXSize; ++x, ++i)
-				{ istat[i] = PROCESSED; dirs[y][x] = 0; }
-		for (int y=iHY+1, i=(iHY+1)*iXSize; y<iYSize; ++y)
-			for (int x=0; x<iXSize; ++x, ++i)
-				{ istat[i] = PROCESSED; dirs[y][x] = 0; }
-		for (int y=iLY, i=iLY*iXSize; y<=iHY; ++y, i+=iXSize) {
-			for (int x=0, j=i; x<iLX; ++x, ++j)
-				{ istat[j] = PROCESSED; dirs[y][x] = 0; }
-			for (int x=iHX+1, j=i+iHX+1; x<iXSize; ++x, ++j)
-				{ istat[j] = PROCESSED; dirs[y][x] = 0; }
-		}
-		
-		// Initialize arrays within window:
-		for (int y=iLY, i=iLY*iXSize; y<=iHY; ++y, i+=iXSize)
-			for (int x=iLX, j=i+iLX; x<=iHX; ++x, ++j) {
-				dirs[y][x] = 0;
-				ccost[j] = INFINITE;
-				istat[j] = FREE;
-			}
+		this.costs = costs;
+		this.iXSize = iXSize;
+		if (weights == null || !weights.valid(costs)) {
+			weights = null;
+			weights = new EdgeWeights(costs,NJ.gamma);
+		} else weights.weigh(NJ.gamma);
 		
 		// Initialize queue:
-		final QueueElement[] queue = new QueueElement[256];
-		for (int i=0; i<256; ++i) queue[i] = new QueueElement();
+		queue.reset(4*(iHX - iLX + iHY - iLY + 2));
 		
 		// Define relative positions of neighboring points:
-		final int[] rpos = new int[9];
-		rpos[8] = -iXSize - 1;
-		rpos[7] = -iXSize;
-		rpos[6] = -iXSize + 1;
+		rpos[8] = -iWX - 1;
+		rpos[7] = -iWX;
+		rpos[6] = -iWX + 1;
 		rpos[5] = -1;
 		rpos[4] = 1;
-		rpos[3] = iXSize - 1;
-		rpos[2] = iXSize;
-		rpos[1] = iXSize + 1;
+		rpos[3] = iWX - 1;
+		rpos[2] = iWX;
+		rpos[1] = iWX + 1;
 		rpos[0] = 0;
 		
-		// The following lines implement the shortest path algorithm as
-		// proposed by E. W. Dijkstra, A Note on Two Problems in
-		// Connexion with Graphs, Numerische Mathematik, vol. 1, 1959,
-		// pp. 269-271. Note, however, that this is a special
-		// implementation for discrete costs based on a circular queue.
+		// The search implements the shortest path algorithm as proposed
+		// by E. W. Dijkstra, A Note on Two Problems in Connexion with
+		// Graphs, Numerische Mathematik, vol. 1, 1959, pp. 269-271. Note,
+		// however, that this is a special implementation for discrete
+		// costs based on a circular queue.
 		
 		// Initialization:
+		stamp[vstart] = generation;
+		dirs[vstart] = 0;
 		ccost[vstart] = 0;
-		int pindex = -1;
-		int cindex = 0;
-		queue[cindex].add(vstart);
-		boolean bQueue = true;
+		cindex = 0;
+		queue.add(cindex,vstart);
+		bQueue = true;
+		weights.limit(2L*(NJ.dijkrange + 2*EdgeWeights.TILE)*(NJ.dijkrange + 2*EdgeWeights.TILE));
+	}
+	
+	// Returns the window { lowx, lowy, highx, highy } of a search from
+	// the given starting point:
+	static int[] window(final CostField costs, final Point startpoint) {
 		
-		final float gamma = NJ.gamma;
-		final float invgamma = 1 - gamma;
+		final int iXSizem1 = costs.xsize() - 1;
+		final int iYSizem1 = costs.ysize() - 1;
+		final int iXSizem2 = iXSizem1 - 1;
+		final int iYSizem2 = iYSizem1 - 1;
+		int iLX = 1; int iLY = 1;
+		int iHX = iXSizem2; int iHY = iYSizem2;
+		final int iHalfWinSize = NJ.dijkrange/2;
+		if (NJ.dijkrange < iXSizem2) {
+			iLX = startpoint.x - iHalfWinSize;
+			iHX = startpoint.x + iHalfWinSize;
+			if (iLX < 1) { iLX = 1; iHX = NJ.dijkrange; }
+			if (iHX > iXSizem2) { iHX = iXSizem2; iLX = iXSizem1 - NJ.dijkrange; }
+		}
+		if (NJ.dijkrange < iYSizem2) {
+			iLY = startpoint.y - iHalfWinSize;
+			iHY = startpoint.y + iHalfWinSize;
+			if (iLY < 1) { iLY = 1; iHY = NJ.dijkrange; }
+			if (iHY > iYSizem2) { iHY = iYSizem2; iLY = iYSizem1 - NJ.dijkrange; }
+		}
+		return new int[] { iLX, iLY, iHX, iHY };
+	}
+	
+	// Continues the search started last until the pixel with the given
+	// index (if non-negative) has been settled, or the given number of
+	// pixels has been processed. Returns false if the search is done:
+	boolean expand(final int target, final int count) {
+		
+		final EdgeWeights weights = this.weights;
+		final int[] ccost = this.ccost;
+		final byte[] dirs = this.dirs;
+		final int[] stamp = this.stamp;
+		final int generation = this.generation;
+		final int iLX = this.iLX, iLY = this.iLY;
+		final int iHX = this.iHX, iHY = this.iHY;
+		final int[] rpos = this.rpos;
+		final BucketQueue queue = this.queue;
+		final int iWX = this.iWX;
+		final int[] xpos = EdgeWeights.DX;
+		final int[] ypos = EdgeWeights.DY;
+		int cindex = this.cindex;
+		if (target >= 0 && settled(target)) return bQueue;
+		final int vtarget = (target >= 0) ? ((target/iXSize - iLY)*iWX + (target%iXSize - iLX)) : -1;
 		
 		// Path searching:
-		while (bQueue) {
+		for (int n=0; n<count && bQueue; ++n) {
 			
-			final int vcurrent = queue[cindex].remove();
-			istat[vcurrent] = PROCESSED;
-			final int iCY = vcurrent/iXSize;
-			final int iCX = vcurrent%iXSize;
-			
-			for (int i=1; i<9; ++i) {
-				final int vneighbor = vcurrent + rpos[i];
-				if (istat[vneighbor] != PROCESSED) {
-					final int iNY = vneighbor/iXSize;
-					final int iNX = vneighbor%iXSize;
-					float fDY = iNY - iCY;
-					float fDX = iNX - iCX;
-					final float fLen = (float)Math.sqrt(fDY*fDY + fDX*fDX);
-					fDY /= fLen; fDX /= fLen;
-					final int iCurCCost = ccost[vneighbor];
-					final int iNewCCost = ccost[vcurrent] +
-					(int)(gamma*costimage[iNY][iNX] +
-						invgamma*127*(float)(Math.sqrt(1 - Math.abs(costfieldy[iCY][iCX]*fDY + costfieldx[iCY][iCX]*fDX)) +
-						Math.sqrt(1 - Math.abs(costfieldy[iNY][iNX]*fDY + costfieldx[iNY][iNX]*fDX))));
-					if (iNewCCost < iCurCCost) {
+			if (vtarget >= 0 && stamp[vtarget] == generation && (dirs[vtarget] & PROCESSED) != 0) break;
+			// Pixels whose cost decreased after they were queued have
+			// more than one entry. Only the first one popped counts:
+			final int vcurrent = queue.remove(cindex);
+			if ((dirs[vcurrent] & PROCESSED) == 0) {
+				dirs[vcurrent] |= PROCESSED;
+				final int iCY = vcurrent/iWX + iLY;
+				final int iCX = vcurrent%iWX + iLX;
+				final byte[] wtile = weights.tile(iCX,iCY);
+				final int woffset = weights.offset(iCX,iCY) - 1;
+				final int iCCost = ccost[vcurrent];
+				
+				for (int i=1; i<9; ++i) {
+					final int iNY = iCY + ypos[i];
+					final int iNX = iCX + xpos[i];
+					if (iNX < iLX || iNX > iHX || iNY < iLY || iNY > iHY) continue;
+					final int vneighbor = vcurrent + rpos[i];
+					final int iNewCCost = iCCost + (wtile[woffset + i]&0xFF);
+					if (stamp[vneighbor] != generation || ((dirs[vneighbor] & PROCESSED) == 0 && iNewCCost - ccost[vneighbor] < 0)) {
+						stamp[vneighbor] = generation;
 						ccost[vneighbor] = iNewCCost;
-						dirs[iNY][iNX] = (byte)i;
-						if (istat[vneighbor] == FREE)
-							istat[vneighbor] = queue[iNewCCost & 255].add(vneighbor);
-						else {
-							final int iVIndex = iCurCCost & 255;
-							final int iEIndex = istat[vneighbor];
-							queue[iVIndex].remove(iEIndex);
-							istat[queue[iVIndex].get(iEIndex)] = iEIndex;
-							istat[vneighbor] = queue[iNewCCost & 255].add(vneighbor);
-						}
+						dirs[vneighbor] = (byte)i;
+						queue.add(iNewCCost & 255,vneighbor);
 					}
 				}
 			}
 			
-			pindex = cindex;
-			while (queue[cindex].size() == 0) {
+			final int pindex = cindex;
+			while (queue.empty(cindex)) {
 				++cindex; cindex &= 255;
 				if (cindex == pindex) { bQueue = false; break; }
 			}
 		}
 		
-		return dirs;
+		this.cindex = cindex;
+		return bQueue;
 	}
 	
-}
-
-// ***************************************************************************
-final class QueueElement {
+	// Determines whether the shortest path from the given pixel is final
+	// (pixels outside the window are considered settled and lead directly
+	// to the starting point):
+	boolean settled(final int x, final int y) {
+		if (x < iLX || x > iHX || y < iLY || y > iHY) return true;
+		final int index = (y - iLY)*iWX + (x - iLX);
+		return stamp[index] == generation && (dirs[index] & PROCESSED) != 0;
+	}
 	
-	private int iCapacity = 40;
-	private final int iCapInc = 40;
-	private int iLast = -1;
-	private int[] iarray = new int[iCapacity];
+	boolean settled(final int index) { return settled(index%iXSize,index/iXSize); }
 	
-	int add(final int element) {
-		if (++iLast == iCapacity) inccap();
-		iarray[iLast] = element;
-		return iLast;
+	// Returns the direction of the given pixel (zero outside the window):
+	int direction(final int x, final int y) {
+		if (x < iLX || x > iHX || y < iLY || y > iHY) return 0;
+		final int index = (y - iLY)*iWX + (x - iLX);
+		return (stamp[index] == generation) ? (dirs[index] & 15) : 0;
 	}
 	
-	private void inccap() {
-		iCapacity += iCapInc;
-		final int[] newarray = new int[iCapacity];
-		for (int i=0; i<iLast; ++i) newarray[i] = iarray[i];
-		iarray = newarray;
-	}
+	int direction(final int index) { return direction(index%iXSize,index/iXSize); }
 	
-	int get(final int index) { return iarray[index]; }
+	int xsize() { return iXSize; }
 	
-	int remove() { return iarray[iLast--]; }
+	// Returns the window of the current search as { lowx, lowy, highx, highy }:
+	int[] window() { return new int[] { iLX, iLY, iHX, iHY }; }
+	
+	EdgeWeights weights() { return weights; }
+	
+}
+
+// ***************************************************************************
+final class AStar {
+	
+	// Finds the shortest path from a start point to a single goal point
+	// within a given window, using the edge weights of Dijkstra. Pixels
+	// are expanded in the order of their cost from the start plus a lower
+	// bound of the cost to the goal. Any path from a pixel at Chebyshev
+	// distance r from the goal steps into at least one pixel of every
+	// ring at distance r-1 down to 0, and every step costs at least the
+	// weighted cost of the pixel stepped into, so the sum of the minimum
+	// weighted costs over these rings is such a bound. (The global
+	// minimum cost times the distance is too, but since the costs are
+	// normalized, that minimum is zero.) The bound is consistent, so the
+	// path found is as cheap as the one found by Dijkstra, while the
+	// expansion is directed towards the goal. The ring minima are
+	// computed only as far out as the search gets. Since the estimate
+	// increases by at most twice the maximum weight per step, 512
+	// circular buckets suffice. The state arrays cover only the window
+	// and are stamped with a generation, like in Dijkstra.
+	
+	private final int PROCESSED = 16;
+	
+	private int[] gcost = null;
+	private int[] stamp = null;
+	private byte[] dirs = null;
+	private int generation = 0;
+	
+	private final BucketQueue queue = new BucketQueue(512);
+	
+	// Lower bounds of the cost to the goal per ring:
+	private int[] bounds = new int[256];
+	private int nrrings = 0;
+	
+	private volatile boolean cancel = false;
+	
+	// Sets whether a running search should be abandoned, in which case
+	// the run method returns null:
+	void cancel(final boolean cancel) { this.cancel = cancel; }
+	
+	// Returns the path from the goal (exclusive) to the start point
+	// (inclusive) as x,y pairs, or null if the search was abandoned:
+	int[] run(final EdgeWeights weights, final int[] window, final Point start, final Point goal) {
+		
+		final int iLX = window[0], iLY = window[1];
+		final int iHX = window[2], iHY = window[3];
+		final int iWX = iHX - iLX + 1;
+		final int iNrPixels = iWX*(iHY - iLY + 1);
+		if (gcost == null || gcost.length < iNrPixels) {
+			gcost = null; stamp = null; dirs = null;
+			gcost = new int[iNrPixels];
+			stamp = new int[iNrPixels];
+			dirs = new byte[iNrPixels];
+			generation = 0;
+		}
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamp,0);
+			generation = 1;
+		}
+		final int[] gcost = this.gcost;
+		final int[] stamp = this.stamp;
+		final byte[] dirs = this.dirs;
+		final int generation = this.generation;
+		final int[] xpos = EdgeWeights.DX;
+		final int[] ypos = EdgeWeights.DY;
+		final int[] rpos = new int[9];
+		for (int i=1; i<9; ++i) rpos[i] = ypos[i]*iWX + xpos[i];
+		final int iGX = goal.x, iGY = goal.y;
+		nrrings = 0;
+		
+		final int vstart = (start.y - iLY)*iWX + (start.x - iLX);
+		final int vgoal = (iGY - iLY)*iWX + (iGX - iLX);
+		queue.reset(4*(iHX - iLX + iHY - iLY + 2));
+		stamp[vstart] = generation;
+		gcost[vstart] = 0;
+		dirs[vstart] = 0;
+		int cindex = bound(weights,window,goal,Math.max(Math.abs(start.x - iGX),Math.abs(start.y - iGY))) & 511;
+		queue.add(cindex,vstart);
+		
+		int iCount = 0;
+		while (true) {
+			
+			final int pindex = cindex;
+			while (queue.empty(cindex)) {
+				++cindex; cindex &= 511;
+				if (cindex == pindex) return null;
+			}
+			if ((++iCount & 4095) == 0 && cancel) return null;
+			
+			final int vcurrent = queue.remove(cindex);
+			if ((dirs[vcurrent] & PROCESSED) != 0) continue;
+			dirs[vcurrent] |= PROCESSED;
+			if (vcurrent == vgoal) break;
+			
+			final int iCX = vcurrent%iWX + iLX;
+			final int iCY = vcurrent/iWX + iLY;
+			final byte[] wtile = weights.tile(iCX,iCY);
+			final int woffset = weights.offset(iCX,iCY) - 1;
+			final int iCCost = gcost[vcurrent];
+			
+			for (int i=1; i<9; ++i) {
+				final int iNY = iCY + ypos[i];
+				final int iNX = iCX + xpos[i];
+				if (iNX < iLX || iNX > iHX || iNY < iLY || iNY > iHY) continue;
+				final int vneighbor = vcurrent + rpos[i];
+				final int iNewCost = iCCost + (wtile[woffset + i]&0xFF);
+				if (stamp[vneighbor] != generation || ((dirs[vneighbor] & PROCESSED) == 0 && iNewCost - gcost[vneighbor] < 0)) {
+					stamp[vneighbor] = generation;
+					gcost[vneighbor] = iNewCost;
+					dirs[vneighbor] = (byte)i;
+					final int iRing = Math.max(Math.abs(iNX - iGX),Math.abs(iNY - iGY));
+					final int iEstimate = iNewCost + ((iRing < nrrings) ? bounds[iRing] : bound(weights,window,goal,iRing));
+					queue.add(iEstimate & 511,vneighbor);
+				}
+			}
+		}
+		
+		// Trace back from the goal:
+		int[] path = new int[256];
+		int length = 0;
+		int x = iGX, y = iGY;
+		while (x != start.x || y != start.y) {
+			final int d = dirs[(y - iLY)*iWX + (x - iLX)] & 15;
+			x -= xpos[d]; y -= ypos[d];
+			if (length == path.length) path = Arrays.copyOf(path,2*length);
+			path[length++] = x;
+			path[length++] = y;
+		}
+		return Arrays.copyOf(path,length);
+	}
 	
-	int remove(final int index) {
-		final int i = iarray[index];
-		iarray[index] = iarray[iLast--];
-		return i;
+	// Returns the lower bound of the cost to the goal from the given ring,
+	// computing the bounds for the rings up to the given one if needed:
+	private int bound(final EdgeWeights weights, final int[] window, final Point goal, final int ring) {
+		
+		if (ring >= bounds.length) bounds = Arrays.copyOf(bounds,Math.max(ring + 1,2*bounds.length));
+		if (nrrings == 0) { bounds[0] = 0; nrrings = 1; }
+		for (int r=nrrings; r<=ring; ++r) {
+			// Minimum over the ring at distance r-1 within the window:
+			final int d = r - 1;
+			final int lx = Math.max(window[0],goal.x - d), hx = Math.min(window[2],goal.x + d);
+			final int ly = Math.max(window[1],goal.y - d), hy = Math.min(window[3],goal.y + d);
+			int minimum = 255;
+			if (goal.y - d >= window[1]) for (int x=lx; x<=hx; ++x) minimum = Math.min(minimum,weights.bound(x,goal.y - d));
+			if (goal.y + d <= window[3]) for (int x=lx; x<=hx; ++x) minimum = Math.min(minimum,weights.bound(x,goal.y + d));
+			if (goal.x - d >= window[0]) for (int y=ly; y<=hy; ++y) minimum = Math.min(minimum,weights.bound(goal.x - d,y));
+			if (goal.x + d <= window[2]) for (int y=ly; y<=hy; ++y) minimum = Math.min(minimum,weights.bound(goal.x + d,y));
+			bounds[r] = bounds[r-1] + minimum;
+		}
+		if (ring >= nrrings) nrrings = ring + 1;
+		return bounds[ring];
 	}
 	
-	int size() { return (iLast + 1); }
+}
+
+// ***************************************************************************
+final class Bidirectional {
+	
+	// Finds the shortest path from a start point to a single goal point
+	// within a given window, using the edge weights of Dijkstra, by
+	// growing one search forward from the start and one backward from
+	// the goal (following the steps in reverse direction, each with the
+	// weight of the step as taken forward). Each time a step reaches a
+	// pixel already reached by the other search, the cheapest connection
+	// found so far is updated. The searches stop once the sum of the
+	// costs up to which both have settled pixels reaches the cost of the
+	// cheapest connection, which is then the shortest path. Each search
+	// uses its own circular bucket queue, and the one that has settled
+	// the lower cost is expanded next. The state arrays cover only the
+	// window and are stamped with a generation, like in Dijkstra. Since
+	// the costs of both searches are added, they are taken as unsigned
+	// values, which limits them to 2^32 (over 16 million steps of the
+	// maximum weight).
+	
+	// Flags in the directions maps marking pixels reached by a search
+	// and pixels whose cost is final:
+	private final int REACHED = 32;
+	private final int PROCESSED = 16;
+	
+	private int[] fcost = null, bcost = null;
+	private byte[] fdirs = null, bdirs = null;
+	private int[] stamp = null;
+	private int generation = 0;
+	
+	private final BucketQueue fqueue = new BucketQueue(256);
+	private final BucketQueue bqueue = new BucketQueue(256);
+	
+	private volatile boolean cancel = false;
+	
+	// Sets whether a running search should be abandoned, in which case
+	// the run method returns null:
+	void cancel(final boolean cancel) { this.cancel = cancel; }
+	
+	// Returns the path from the goal (exclusive) to the start point
+	// (inclusive) as x,y pairs, or null if the search was abandoned:
+	int[] run(final EdgeWeights weights, final int[] window, final Point start, final Point goal) {
+		
+		final int iLX = window[0], iLY = window[1];
+		final int iHX = window[2], iHY = window[3];
+		final int iWX = iHX - iLX + 1;
+		final int iNrPixels = iWX*(iHY - iLY + 1);
+		if (stamp == null || stamp.length < iNrPixels) {
+			fcost = null; bcost = null; fdirs = null; bdirs = null; stamp = null;
+			fcost = new int[iNrPixels];
+			bcost = new int[iNrPixels];
+			fdirs = new byte[iNrPixels];
+			bdirs = new byte[iNrPixels];
+			stamp = new int[iNrPixels];
+			generation = 0;
+		}
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamp,0);
+			generation = 1;
+		}
+		final int[] fcost = this.fcost, bcost = this.bcost;
+		final byte[] fdirs = this.fdirs, bdirs = this.bdirs;
+		final int[] stamp = this.stamp;
+		final int generation = this.generation;
+		final int[] xpos = EdgeWeights.DX;
+		final int[] ypos = EdgeWeights.DY;
+		final int[] rpos = new int[9];
+		for (int i=1; i<9; ++i) rpos[i] = ypos[i]*iWX + xpos[i];
+		
+		final int vstart = (start.y - iLY)*iWX + (start.x - iLX);
+		final int vgoal = (goal.y - iLY)*iWX + (goal.x - iLX);
+		final int capacity = 4*(iHX - iLX + iHY - iLY + 2);
+		fqueue.reset(capacity);
+		bqueue.reset(capacity);
+		stamp[vstart] = generation; fcost[vstart] = 0; fdirs[vstart] = REACHED; bdirs[vstart] = 0;
+		stamp[vgoal] = generation; bcost[vgoal] = 0; bdirs[vgoal] = REACHED;
+		if (vgoal != vstart) fdirs[vgoal] = 0;
+		fqueue.add(0,vstart);
+		bqueue.add(0,vgoal);
+		
+		// Levels are the costs up to which the searches have settled pixels:
+		long flevel = 0, blevel = 0;
+		int fcount = 1, bcount = 1;
+		long best = (vgoal == vstart) ? 0 : Long.MAX_VALUE;
+		int meet = vstart;
+		int iCount = 0;
+		
+		while (fcount > 0 && bcount > 0 && flevel + blevel < best) {
+			
+			if ((++iCount & 4095) == 0 && cancel) return null;
+			final boolean forward = (flevel <= blevel);
+			final BucketQueue queue = forward ? fqueue : bqueue;
+			final int[] cost = forward ? fcost : bcost;
+			final byte[] dirs = forward ? fdirs : bdirs;
+			long level = forward ? flevel : blevel;
+			
+			while (queue.empty((int)level & 255)) ++level;
+			final int vcurrent = queue.remove((int)level & 255);
+			if (forward) { flevel = level; --fcount; } else { blevel = level; --bcount; }
+			if ((dirs[vcurrent] & PROCESSED) != 0) continue;
+			dirs[vcurrent] |= PROCESSED;
+			
+			final int iCX = vcurrent%iWX + iLX;
+			final int iCY = vcurrent/iWX + iLY;
+			final int iCCost = cost[vcurrent];
+			
+			if (forward) {
+				final byte[] wtile = weights.tile(iCX,iCY);
+				final int woffset = weights.offset(iCX,iCY) - 1;
+				for (int i=1; i<9; ++i) {
+					final int iNY = iCY + ypos[i];
+					final int iNX = iCX + xpos[i];
+					if (iNX < iLX || iNX > iHX || iNY < iLY || iNY > iHY) continue;
+					final int vneighbor = vcurrent + rpos[i];
+					if (stamp[vneighbor] != generation) {
+						stamp[vneighbor] = generation;
+						fdirs[vneighbor] = bdirs[vneighbor] = 0;
+					}
+					final int iNewCost = iCCost + (wtile[woffset + i]&0xFF);
+					if ((fdirs[vneighbor] & REACHED) == 0 || ((fdirs[vneighbor] & PROCESSED) == 0 && iNewCost - fcost[vneighbor] < 0)) {
+						fcost[vneighbor] = iNewCost;
+						fdirs[vneighbor] = (byte)(REACHED | i);
+						fqueue.add(iNewCost & 255,vneighbor);
+						++fcount;
+						if ((bdirs[vneighbor] & REACHED) != 0) {
+							final long total = (iNewCost & 0xFFFFFFFFL) + (bcost[vneighbor] & 0xFFFFFFFFL);
+							if (total < best) { best = total; meet = vneighbor; }
+						}
+					}
+				}
+			} else {
+				// The neighbors are the pixels from which a step leads here:
+				for (int i=1; i<9; ++i) {
+					final int iNY = iCY - ypos[i];
+					final int iNX = iCX - xpos[i];
+					if (iNX < iLX || iNX > iHX || iNY < iLY || iNY > iHY) continue;
+					final int vneighbor = vcurrent - rpos[i];
+					if (stamp[vneighbor] != generation) {
+						stamp[vneighbor] = generation;
+						fdirs[vneighbor] = bdirs[vneighbor] = 0;
+					}
+					final int iNewCost = iCCost + (weights.tile(iNX,iNY)[weights.offset(iNX,iNY) + i - 1]&0xFF);
+					if ((bdirs[vneighbor] & REACHED) == 0 || ((bdirs[vneighbor] & PROCESSED) == 0 && iNewCost - bcost[vneighbor] < 0)) {
+						bcost[vneighbor] = iNewCost;
+						bdirs[vneighbor] = (byte)(REACHED | i);
+						bqueue.add(iNewCost & 255,vneighbor);
+						++bcount;
+						if ((fdirs[vneighbor] & REACHED) != 0) {
+							final long total = (iNewCost & 0xFFFFFFFFL) + (fcost[vneighbor] & 0xFFFFFFFFL);
+							if (total < best) { best = total; meet = vneighbor; }
+						}
+					}
+				}
+			}
+		}
+		if (best == Long.MAX_VALUE) return null;
+		
+		// The backward directions lead from the meeting point to the goal,
+		// which part of the path is reversed, and the forward directions
+		// lead from the meeting point to the start:
+		int[] path = new int[256];
+		int length = 0;
+		int x = meet%iWX + iLX, y = meet/iWX + iLY;
+		int v = meet;
+		while (v != vgoal) {
+			if (length == path.length) path = Arrays.copyOf(path,2*length);
+			path[length++] = x;
+			path[length++] = y;
+			final int d = bdirs[v] & 15;
+			x += xpos[d]; y += ypos[d];
+			v = (y - iLY)*iWX + (x - iLX);
+		}
+		for (int i=0, j=length-2; i<j; i+=2, j-=2) {
+			final int tx = path[i], ty = path[i+1];
+			path[i] = path[j]; path[i+1] = path[j+1];
+			path[j] = tx; path[j+1] = ty;
+		}
+		x = meet%iWX + iLX; y = meet/iWX + iLY;
+		v = meet;
+		while (v != vstart) {
+			final int d = fdirs[v] & 15;
+			x -= xpos[d]; y -= ypos[d];
+			v = (y - iLY)*iWX + (x - iLX);
+			if (length == path.length) path = Arrays.copyOf(path,2*length);
+			path[length++] = x;
+			path[length++] = y;
+		}
+		return Arrays.copyOf(path,length);
+	}
 	
 }
 
 // ***************************************************************************
-final class Costs {
+final class Pyramid {
 	
-	// Returns a cost image and vector field computed from the
-	// eigenvalues and eigenvectors of the Hessian of the input
-	// image. The second and third index correspond, respectively, to
-	// the y- and x-coordinate. The first index selects the image:
-	// element 0 contains the cost image, element 1 the x-component of
-	// the vector field, and element 2 the y-component of the vector
-	// field. The gray-value at any point in the cost image is computed
-	// from the eigenvalues of the Hessian matrix at that
-	// point. Specifically, the method computes both (adjusted)
-	// eigenvalues and selects the one with the largest magnitude. Since
-	// in the NeuronJ application we are interested in bright structures
-	// on a dark background, the method stores this absolute eigenvalue
-	// only if the actual eigenvalue is negative. Otherwise it stores a
-	// zero. The eventual largest-eigenvalue image is inverted and
-	// scaled to gray-value range [0,255]. The vector at any point in
-	// the vector field is simply the eigenvector corresponding to the
-	// largest absolute eigenvalue at that point.
-	public float[][][] run(final ByteProcessor image, final boolean bright, final float scale) {
+	// Finds a path from a start point to a single goal point within a
+	// given window by a coarse-to-fine search. The cost field is
+	// downsampled by factors of 2, 4 and 8, and the path is first found
+	// at the coarsest level needed for the distance to be covered. At
+	// every finer level, the search is confined to a corridor of blocks
+	// around the path found at the level above, so that the work at full
+	// resolution is proportional to the length of the path times the
+	// width of the corridor rather than to the area of the window. Since
+	// the corridor excludes detours, the path found need not be the
+	// shortest. The blocks of consecutive pixels along a coarse path
+	// overlap, so the corridor is connected and contains the start and
+	// goal points. The state arrays cover only the bounding box of the
+	// corridor and are stamped with a generation, like in Dijkstra.
+	
+	private static final int LEVELS = 3;
+	
+	// Margin around the block of every coarse path pixel at the finer level:
+	private static final int RADIUS = 2;
+	
+	// Minimum distance in pixels between the start and goal points at the coarsest level:
+	private static final int MINDIST = 16;
+	
+	private final int PROCESSED = 16;
+	
+	private CostField costs = null;
+	private final CostField[] fields = new CostField[LEVELS + 1];
+	private final EdgeWeights[] weights = new EdgeWeights[LEVELS + 1];
+	
+	private int[] ccost = null;
+	private int[] stamp = null;
+	private int[] mask = null;
+	private byte[] dirs = null;
+	private int generation = 0;
+	
+	// Bounds of the current search:
+	private int iLX = 0, iLY = 0, iHX = -1, iHY = -1;
+	
+	private final BucketQueue queue = new BucketQueue(256);
+	
+	private volatile boolean cancel = false;
+	
+	// Sets whether a running search should be abandoned, in which case
+	// the run method returns null:
+	void cancel(final boolean cancel) { this.cancel = cancel; }
+	
+	// Returns the path from the goal (exclusive) to the start point
+	// (inclusive) as x,y pairs, or null if the search was abandoned:
+	int[] run(final CostField costs, final EdgeWeights weights, final int[] window, final Point start, final Point goal) {
 		
-		NJ.log("Cost image and vector field from Hessian at scale "+scale+" ...");
-		final Progressor pgs = new Progressor();
-		pgs.display(true); pgs.enforce(true);
+		if (this.costs != costs) {
+			for (int l=0; l<=LEVELS; ++l) { fields[l] = null; this.weights[l] = null; }
+			this.costs = costs;
+			fields[0] = costs;
+		}
+		this.weights[0] = weights;
+		
+		// Determine the number of levels and the windows and points at each level:
+		final int iDist = Math.max(Math.abs(goal.x - start.x),Math.abs(goal.y - start.y));
+		int iLevels = 0;
+		while (iLevels < LEVELS && (iDist >> (iLevels + 1)) >= MINDIST) ++iLevels;
+		final int[][] windows = new int[iLevels + 1][];
+		final Point[] starts = new Point[iLevels + 1];
+		final Point[] goals = new Point[iLevels + 1];
+		windows[0] = window; starts[0] = start; goals[0] = goal;
+		for (int l=1; l<=iLevels; ++l) {
+			final CostField field = field(l);
+			// Bound the weights kept like those at full resolution, for
+			// the window at this level:
+			final long side = (NJ.dijkrange >> l) + 2*EdgeWeights.TILE;
+			this.weights[l].limit(2L*side*side);
+			final int[] w = windows[l-1];
+			windows[l] = new int[] {
+				Math.max(1,w[0] >> 1), Math.max(1,w[1] >> 1),
+				Math.min(field.xsize() - 2,w[2] >> 1), Math.min(field.ysize() - 2,w[3] >> 1) };
+			starts[l] = coarse(starts[l-1],windows[l]);
+			goals[l] = coarse(goals[l-1],windows[l]);
+			// The coarse fields of lazy fields are lazy too, and are
+			// prepared like the field itself so that they stay bounded:
+			if (field.lazy()) field.prepare(windows[l][0] - 1,windows[l][1] - 1,windows[l][2] + 1,windows[l][3] + 1);
+		}
 		
-		// Compute Hessian components:
-		pgs.status("Computing derivatives...");
-		final Image inImage = Image.wrap(new ImagePlus("",image));
-		final Differentiator differ = new Differentiator();
-		differ.progressor.parent(pgs);
-		pgs.range(0.0,0.3); final Image Hxx = differ.run(inImage,scale,2,0,0);
-		pgs.range(0.3,0.6); final Image Hxy = differ.run(inImage,scale,1,1,0);
-		pgs.range(0.6,0.9); final Image Hyy = differ.run(inImage,scale,0,2,0);
+		// Search the whole window at the coarsest level, and the corridor
+		// around the path found at the level above at every finer level:
+		final int[] cw = windows[iLevels];
+		bounds(cw[0],cw[1],cw[2],cw[3]);
+		int[] path = search(this.weights[iLevels],starts[iLevels],goals[iLevels],false);
+		for (int l=iLevels-1; l>=0 && path!=null; --l) {
+			final int[] w = windows[l];
+			final Point g = goals[l+1];
+			int lx = 2*g.x, ly = 2*g.y, hx = lx, hy = ly;
+			for (int k=0; k<path.length; k+=2) {
+				lx = Math.min(lx,2*path[k]); hx = Math.max(hx,2*path[k]);
+				ly = Math.min(ly,2*path[k+1]); hy = Math.max(hy,2*path[k+1]);
+			}
+			bounds(Math.max(w[0],lx - RADIUS),Math.max(w[1],ly - RADIUS),Math.min(w[2],hx + 1 + RADIUS),Math.min(w[3],hy + 1 + RADIUS));
+			mark(g.x,g.y);
+			for (int k=0; k<path.length; k+=2) mark(path[k],path[k+1]);
+			path = search(this.weights[l],starts[l],goals[l],true);
+		}
 		
-		// Compute and select adjusted eigenvalues and eigenvectors:
-		pgs.status("Computing eigenimages...");
-		final Dimensions dims = inImage.dimensions();
-		pgs.steps(dims.y); pgs.range(0.9,1.0); pgs.start();
-		final float[] ahxx = (float[])Hxx.imageplus().getStack().getPixels(1);
-		final float[] ahxy = (float[])Hxy.imageplus().getStack().getPixels(1);
-		final float[] ahyy = (float[])Hyy.imageplus().getStack().getPixels(1);
-		final float[][][] evv = new float[3][dims.y][dims.x];
-		final float[][] value = evv[0];
-		final float[][] vectx = evv[1];
-		final float[][] vecty = evv[2];
-		final float inv = bright ? 1 : -1;
-		for (int y=0, i=0; y<dims.y; ++y) {
-			for (int x=0; x<dims.x; ++x, ++i) {
-				final float b1 = inv*(ahxx[i] + ahyy[i]);
-				final float b2 = inv*(ahxx[i] - ahyy[i]);
-				final float d = (float)Math.sqrt(4*ahxy[i]*ahxy[i] + b2*b2);
-				final float L1 = (b1 + 2*d)/3.0f;
-				final float L2 = (b1 - 2*d)/3.0f;
-				final float absL1 = Math.abs(L1);
-				final float absL2 = Math.abs(L2);
-				if (absL1 > absL2) {
-					if (L1 > 0) value[y][x] = 0;
-					else value[y][x] = absL1;
-					vectx[y][x] = b2 - d;
-				} else {
-					if (L2 > 0) value[y][x] = 0;
-					else value[y][x] = absL2;
-					vectx[y][x] = b2 + d;
+		// The corridor always connects the points, so the search can only
+		// fail if the window itself is disconnected at a coarse level:
+		if (path == null && !cancel) {
+			bounds(window[0],window[1],window[2],window[3]);
+			path = search(weights,start,goal,false);
+		}
+		return path;
+	}
+	
+	// Returns the cost field at the given level, computing it if needed:
+	private CostField field(final int level) {
+		
+		if (fields[level] == null) fields[level] = field(level - 1).half();
+		if (weights[level] == null || !weights[level].valid(fields[level]))
+			weights[level] = new EdgeWeights(fields[level],NJ.gamma);
+		else weights[level].weigh(NJ.gamma);
+		return fields[level];
+	}
+	
+	// Returns the point at the next coarser level, moved into the given window:
+	private static Point coarse(final Point point, final int[] window) {
+		
+		return new Point(
+			Math.min(Math.max(point.x >> 1,window[0]),window[2]),
+			Math.min(Math.max(point.y >> 1,window[1]),window[3]));
+	}
+	
+	// Sets the bounds of the next search, starts a new generation, and
+	// makes sure the state arrays cover the bounds:
+	private void bounds(final int lx, final int ly, final int hx, final int hy) {
+		
+		iLX = lx; iLY = ly; iHX = hx; iHY = hy;
+		final int iNrPixels = (hx - lx + 1)*(hy - ly + 1);
+		if (ccost == null || ccost.length < iNrPixels) {
+			ccost = null; stamp = null; mask = null; dirs = null;
+			ccost = new int[iNrPixels];
+			stamp = new int[iNrPixels];
+			mask = new int[iNrPixels];
+			dirs = new byte[iNrPixels];
+			generation = 0;
+		}
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(stamp,0);
+			Arrays.fill(mask,0);
+			generation = 1;
+		}
+	}
+	
+	// Adds the block of the given coarse pixel plus margin to the corridor:
+	private void mark(final int cx, final int cy) {
+		
+		final int iWX = iHX - iLX + 1;
+		final int lx = Math.max(iLX,2*cx - RADIUS), hx = Math.min(iHX,2*cx + 1 + RADIUS);
+		final int ly = Math.max(iLY,2*cy - RADIUS), hy = Math.min(iHY,2*cy + 1 + RADIUS);
+		for (int y=ly; y<=hy; ++y) {
+			final int v = (y - iLY)*iWX;
+			for (int x=lx; x<=hx; ++x) mask[v + x - iLX] = generation;
+		}
+	}
+	
+	// Returns the shortest path within the current bounds, and if so
+	// requested within the corridor, in the format of run(), or null if
+	// the search was abandoned or the goal cannot be reached:
+	private int[] search(final EdgeWeights weights, final Point start, final Point goal, final boolean corridor) {
+		
+		final int iLX = this.iLX, iLY = this.iLY;
+		final int iHX = this.iHX, iHY = this.iHY;
+		final int iWX = iHX - iLX + 1;
+		final int[] ccost = this.ccost;
+		final int[] stamp = this.stamp;
+		final int[] mask = this.mask;
+		final byte[] dirs = this.dirs;
+		final int generation = this.generation;
+		final int[] xpos = EdgeWeights.DX;
+		final int[] ypos = EdgeWeights.DY;
+		final int[] rpos = new int[9];
+		for (int i=1; i<9; ++i) rpos[i] = ypos[i]*iWX + xpos[i];
+		
+		final int vstart = (start.y - iLY)*iWX + (start.x - iLX);
+		final int vgoal = (goal.y - iLY)*iWX + (goal.x - iLX);
+		queue.reset(4*(iHX - iLX + iHY - iLY + 2));
+		stamp[vstart] = generation;
+		ccost[vstart] = 0;
+		dirs[vstart] = 0;
+		int cindex = 0;
+		queue.add(cindex,vstart);
+		
+		int iCount = 0;
+		while (true) {
+			
+			final int pindex = cindex;
+			while (queue.empty(cindex)) {
+				++cindex; cindex &= 255;
+				if (cindex == pindex) return null;
+			}
+			if ((++iCount & 4095) == 0 && cancel) return null;
+			
+			final int vcurrent = queue.remove(cindex);
+			if ((dirs[vcurrent] & PROCESSED) != 0) continue;
+			dirs[vcurrent] |= PROCESSED;
+			if (vcurrent == vgoal) break;
+			
+			final int iCX = vcurrent%iWX + iLX;
+			final int iCY = vcurrent/iWX + iLY;
+			final byte[] wtile = weights.tile(iCX,iCY);
+			final int woffset = weights.offset(iCX,iCY) - 1;
+			final int iCCost = ccost[vcurrent];
+			
+			for (int i=1; i<9; ++i) {
+				final int iNY = iCY + ypos[i];
+				final int iNX = iCX + xpos[i];
+				if (iNX < iLX || iNX > iHX || iNY < iLY || iNY > iHY) continue;
+				final int vneighbor = vcurrent + rpos[i];
+				if (corridor && mask[vneighbor] != generation) continue;
+				final int iNewCost = iCCost + (wtile[woffset + i]&0xFF);
+				if (stamp[vneighbor] != generation || ((dirs[vneighbor] & PROCESSED) == 0 && iNewCost - ccost[vneighbor] < 0)) {
+					stamp[vneighbor] = generation;
+					ccost[vneighbor] = iNewCost;
+					dirs[vneighbor] = (byte)i;
+					queue.add(iNewCost & 255,vneighbor);
 				}
-				vecty[y][x] = 2*inv*ahxy[i];
 			}
-			pgs.step();
 		}
-		pgs.stop();
 		
-		// Convert eigenvalues to costs and normalize eigenvectors:
-		float minval = value[0][0];
-		float maxval = minval;
-		for (int y=0; y<dims.y; ++y)
-			for (int x=0; x<dims.x; ++x)
-				if (value[y][x] > maxval) maxval = value[y][x];
-				else if (value[y][x] < minval) minval = value[y][x];
-		final float roof = 255;
-		final float offset = 0;
-		final float factor = (roof - offset)/(maxval - minval);
-		final byte[] pixels = (byte[])image.getPixels();
-		for (int y=0, i=0; y<dims.y; ++y)
-			for (int x=0; x<dims.x; ++x, ++i) {
-				value[y][x] = roof - (value[y][x] - minval)*factor;
-				final float vectlen = (float)Math.sqrt(vectx[y][x]*vectx[y][x] + vecty[y][x]*vecty[y][x]);
-				if (vectlen > 0) { vectx[y][x] /= vectlen; vecty[y][x] /= vectlen; }
-			}
+		// Trace back from the goal:
+		int[] path = new int[256];
+		int length = 0;
+		int x = goal.x, y = goal.y;
+		while (x != start.x || y != start.y) {
+			final int d = dirs[(y - iLY)*iWX + (x - iLX)] & 15;
+			x -= xpos[d]; y -= ypos[d];
+			if (length == path.length) path = Arrays.copyOf(path,2*length);
+			path[length++] = x;
+			path[length++] = y;
+		}
+		return Arrays.copyOf(path,length);
+	}
+	
+}
+
+// ***************************************************************************
+final class EdgeWeights {
+	
+	// Quantized costs of the steps from every pixel to its eight
+	// neighbors, as used by Dijkstra, for a given cost field and gamma.
+	// The weights are computed per tile of TILE x TILE pixels when first
+	// needed, and are kept for subsequent searches, so that the search
+	// itself is pure integer work. Each weight is the truncated sum of
+	// the weighted cost of the neighbor and the weighted deviations of
+	// the step from the vectors at both pixels, which is at most 255.
+	// Border pixels have no weights, as the search never starts a step
+	// from them.
+	//
+	// The deviation terms do not depend on gamma and are tabulated once
+	// for every direction and quantized orientation, and the weighted
+	// costs are tabulated per gamma. When only gamma changes, the weights
+	// are computed again into the buffers of the tiles computed before.
+	
+	static final int TILE = 64;
+	private static final int SHIFT = 6;
+	private static final int MASK = TILE - 1;
+	
+	// Steps from the current pixel to the neighbor for the directions 1
+	// to 8 as stored by Dijkstra, where direction i is stored at the
+	// neighbor, so that backtracking subtracts the step:
+	static final int[] DX = { 0, 1, 0, -1, 1, -1, 1, 0, -1 };
+	static final int[] DY = { 0, 1, 1, 1, 0, 0, -1, -1, -1 };
+	
+	private final CostField costs;
+	private final int xtiles, ytiles;
+	private final byte[][] tiles;
+	private int nrtiles = 0;
+	
+	// Buffers of tiles computed for a previous gamma:
+	private byte[][] spare = new byte[0][];
+	private int nrspare = 0;
+	
+	// Weighted costs for the current gamma and the weight factor of the deviations:
+	private float gamma = Float.NaN;
+	private final float[] levels = new float[256];
+	private float factor;
+	
+	// Deviation terms for every direction and quantized orientation:
+	private static final double[][] deviations = new double[9][256];
+	static {
+		for (int i=1; i<9; ++i) {
+			float fDY = DY[i];
+			float fDX = DX[i];
+			final float fLen = (float)Math.sqrt(fDY*fDY + fDX*fDX);
+			fDY /= fLen; fDX /= fLen;
+			for (int a=0; a<256; ++a)
+			deviations[i][a] = Math.sqrt(1 - Math.abs(CostField.sine(a)*fDY + CostField.cosine(a)*fDX));
+		}
+	}
+	
+	EdgeWeights(final CostField costs, final float gamma) {
+		
+		this.costs = costs;
+		xtiles = (costs.xsize() + MASK) >> SHIFT;
+		ytiles = (costs.ysize() + MASK) >> SHIFT;
+		tiles = new byte[xtiles*ytiles][];
+		weigh(gamma);
+	}
+	
+	// Sets the gamma for which the weights are computed, keeping the
+	// buffers of the tiles computed so far if it changes:
+	void weigh(final float gamma) {
+		
+		if (gamma == this.gamma) return;
+		this.gamma = gamma;
+		for (int c=0; c<256; ++c) levels[c] = gamma*c;
+		factor = (1 - gamma)*127;
+		if (nrtiles > 0) {
+			spare = new byte[nrtiles][];
+			nrspare = 0;
+			for (int t=0; t<tiles.length; ++t)
+				if (tiles[t] != null) { spare[nrspare++] = tiles[t]; tiles[t] = null; }
+			nrtiles = 0;
+		}
+	}
+	
+	// Returns a lower bound for the weights of all steps into the given pixel:
+	int bound(final int x, final int y) { return (int)(gamma*costs.cost(x,y)); }
+	
+	boolean valid(final CostField costs) { return this.costs == costs; }
+	
+	// Discards all tiles if more than the given number of pixels are covered:
+	void limit(final long pixels) {
+		if ((long)nrtiles*TILE*TILE > pixels) {
+			for (int t=0; t<tiles.length; ++t) tiles[t] = null;
+			nrtiles = 0;
+		}
+		if ((long)nrspare*TILE*TILE > pixels) {
+			spare = new byte[0][];
+			nrspare = 0;
+		}
+	}
+	
+	// Returns the tile containing the weights of the given pixel:
+	byte[] tile(final int x, final int y) {
+		final int t = (y >> SHIFT)*xtiles + (x >> SHIFT);
+		byte[] tile = tiles[t];
+		if (tile == null) tile = tiles[t] = compute(x >> SHIFT,y >> SHIFT);
+		return tile;
+	}
+	
+	// Returns the offset of the eight weights of the given pixel in its tile:
+	int offset(final int x, final int y) { return (((y & MASK) << SHIFT) + (x & MASK)) << 3; }
+	
+	private byte[] compute(final int tx, final int ty) {
+		
+		byte[] tile;
+		if (nrspare > 0) { tile = spare[--nrspare]; spare[nrspare] = null; }
+		else tile = new byte[TILE*TILE*8];
+		final int xsize = costs.xsize();
+		final int lx = Math.max(1,tx << SHIFT), hx = Math.min(xsize - 2,(tx << SHIFT) + MASK);
+		final int ly = Math.max(1,ty << SHIFT), hy = Math.min(costs.ysize() - 2,(ty << SHIFT) + MASK);
+		if (lx > hx || ly > hy) { ++nrtiles; return tile; }
+		
+		// Copy the costs and orientations of the tile and the pixels around it:
+		final int w = hx - lx + 3;
+		final byte[] tcosts = new byte[w*(hy - ly + 3)];
+		final byte[] tangles = new byte[tcosts.length];
+		for (int y=ly-1; y<=hy+1; ++y) costs.row(lx - 1,y,tcosts,tangles,(y - ly + 1)*w,w);
+		final int[] neighbors = new int[9];
+		for (int i=1; i<9; ++i) neighbors[i] = DY[i]*w + DX[i];
+		
+		for (int y=ly; y<=hy; ++y)
+			for (int x=lx, p=(y - ly + 1)*w + 1; x<=hx; ++x, ++p) {
+				final int acurrent = tangles[p]&0xFF;
+				final int o = offset(x,y) - 1;
+				for (int i=1; i<9; ++i) {
+					final int q = p + neighbors[i];
+					tile[o + i] = (byte)(int)(levels[tcosts[q]&0xFF] +
+						factor*(float)(deviations[i][acurrent] + deviations[i][tangles[q]&0xFF]));
+				}
+			}
+		++nrtiles;
+		return tile;
+	}
+	
+}
+
+// ***************************************************************************
+final class SnapIndex {
+	
+	// Lowest-cost pixel within the snap window of every pixel, for a
+	// given cost field and snap range, as used for snapping the cursor.
+	// The index is computed per tile of TILE x TILE pixels when first
+	// needed, by taking sliding-window minima first along the rows and
+	// then along the columns. Each pass keeps a deque of candidates with
+	// increasing costs, so a tile takes constant time per pixel whatever
+	// the snap range, and every lookup after that takes constant time.
+	// Of several pixels having the lowest cost, the first in raster order
+	// is stored, which is the one found by scanning the window. Border
+	// pixels are neither indexed nor snapped to.
+	
+	static final int TILE = 64;
+	private static final int SHIFT = 6;
+	private static final int MASK = TILE - 1;
+	
+	// Maximum number of tiles kept:
+	private static final int CAPACITY = 1024;
+	
+	private final CostField costs;
+	private final int range, size;
+	private final int xtiles, ytiles;
+	private final short[][] tiles;
+	private int nrtiles = 0;
+	
+	SnapIndex(final CostField costs, final int range) {
+		
+		this.costs = costs;
+		this.range = range;
+		size = 2*range + 1;
+		xtiles = (costs.xsize() + MASK) >> SHIFT;
+		ytiles = (costs.ysize() + MASK) >> SHIFT;
+		tiles = new short[xtiles*ytiles][];
+	}
+	
+	boolean valid(final CostField costs, final int range) { return this.costs == costs && this.range == range; }
+	
+	// Moves the given point to the pixel with the lowest cost within the
+	// snap window of the given non-border pixel, if that cost is lower
+	// than that of the given pixel. If the costs are computed on demand,
+	// this is done only with the costs present, which are never computed
+	// here so as not to block the interface:
+	void snap(final int x, final int y, final Point point) {
+		
+		final int t = (y >> SHIFT)*xtiles + (x >> SHIFT);
+		short[] tile = tiles[t];
+		if (tile == null) {
+			if (nrtiles >= CAPACITY) {
+				for (int i=0; i<tiles.length; ++i) tiles[i] = null;
+				nrtiles = 0;
+			}
+			tile = compute(x >> SHIFT,y >> SHIFT);
+			if (tile == null) {
+				scan(x,y,point);
+				return;
+			}
+			tiles[t] = tile;
+		}
+		final int code = tile[((y & MASK) << SHIFT) + (x & MASK)];
+		final int sx = x + code%size - range, sy = y + code/size - range;
+		final int scost = costs.peek(sx,sy), cost = costs.peek(x,y);
+		if (scost >= 0 && scost < cost) point.setLocation(sx,sy);
+	}
+	
+	// Scans the snap window of the given pixel directly, if its costs are present:
+	private void scan(final int x, final int y, final Point point) {
+		
+		final int startx = Math.max(1,x - range), stopx = Math.min(costs.xsize() - 2,x + range);
+		final int starty = Math.max(1,y - range), stopy = Math.min(costs.ysize() - 2,y + range);
+		if (startx > stopx || starty > stopy) return;
+		final int w = stopx - startx + 1;
+		final byte[] wcosts = new byte[w];
+		final byte[] wangles = new byte[w];
+		int lowest = costs.peek(x,y), lowx = x, lowy = y;
+		if (lowest < 0) return;
+		for (int sy=starty; sy<=stopy; ++sy) {
+			if (!costs.peek(startx,sy,wcosts,wangles,0,w)) return;
+			for (int sx=startx; sx<=stopx; ++sx)
+				if ((wcosts[sx - startx]&0xFF) < lowest) {
+					lowest = wcosts[sx - startx]&0xFF;
+					lowx = sx; lowy = sy;
+				}
+		}
+		if (lowx != x || lowy != y) point.setLocation(lowx,lowy);
+	}
+	
+	// Returns the bounds { lowx, lowy, highx, highy } of the non-border
+	// pixels within the snap range of the given tile:
+	private int[] bounds(final int tx, final int ty) {
+		
+		return new int[] {
+			Math.max(1,(tx << SHIFT) - range), Math.max(1,(ty << SHIFT) - range),
+			Math.min(costs.xsize() - 2,(tx << SHIFT) + MASK + range), Math.min(costs.ysize() - 2,(ty << SHIFT) + MASK + range) };
+	}
+	
+	// Returns the index of the given tile, or null if not all costs
+	// needed for it are present:
+	private short[] compute(final int tx, final int ty) {
+		
+		final short[] tile = new short[TILE*TILE];
+		final int lx = Math.max(1,tx << SHIFT), hx = Math.min(costs.xsize() - 2,(tx << SHIFT) + MASK);
+		final int ly = Math.max(1,ty << SHIFT), hy = Math.min(costs.ysize() - 2,(ty << SHIFT) + MASK);
+		if (lx > hx || ly > hy) { ++nrtiles; return tile; }
+		
+		// Copy the costs of the tile and the pixels within the snap range around it:
+		final int[] b = bounds(tx,ty);
+		final int w = b[2] - b[0] + 1, h = b[3] - b[1] + 1;
+		final byte[] tcosts = new byte[w*h];
+		final byte[] tangles = new byte[w*h];
+		for (int y=b[1]; y<=b[3]; ++y)
+			if (!costs.peek(b[0],y,tcosts,tangles,(y - b[1])*w,w)) return null;
+		++nrtiles;
+		final int[] deque = new int[Math.max(w,h)];
+		final int[] dcosts = new int[deque.length];
+		
+		// Lowest-cost column in the window of every column of the tile, for all rows:
+		final int tw = hx - lx + 1;
+		final int[] rowmins = new int[tw*h];
+		for (int r=0; r<h; ++r) {
+			int head = 0, tail = 0, next = b[0];
+			for (int x=lx; x<=hx; ++x) {
+				final int stop = Math.min(b[2],x + range);
+				for (; next<=stop; ++next) {
+					final int c = tcosts[r*w + next - b[0]]&0xFF;
+					while (tail > head && dcosts[tail-1] > c) --tail;
+					deque[tail] = next; dcosts[tail++] = c;
+				}
+				while (deque[head] < x - range) ++head;
+				rowmins[r*tw + x - lx] = deque[head];
+			}
+		}
+		
+		// Lowest-cost row in the window of every row of the tile, for all columns:
+		for (int x=lx; x<=hx; ++x) {
+			int head = 0, tail = 0, next = b[1];
+			for (int y=ly; y<=hy; ++y) {
+				final int stop = Math.min(b[3],y + range);
+				for (; next<=stop; ++next) {
+					final int r = next - b[1];
+					final int c = tcosts[r*w + rowmins[r*tw + x - lx] - b[0]]&0xFF;
+					while (tail > head && dcosts[tail-1] > c) --tail;
+					deque[tail] = next; dcosts[tail++] = c;
+				}
+				while (deque[head] < y - range) ++head;
+				final int sy = deque[head], sx = rowmins[(sy - b[1])*tw + x - lx];
+				tile[((y & MASK) << SHIFT) + (x & MASK)] = (short)((sy - y + range)*size + sx - x + range);
+			}
+		}
+		return tile;
+	}
+	
+}
+
+// ***************************************************************************
+final class BucketQueue {
+	
+	// Circular queue of buckets for the discrete costs used by Dijkstra
+	// (256 buckets) and A* (512 buckets). Each bucket is a linked list of entries in a single flat
+	// pool, which grows by doubling and is reused across searches, so
+	// that no allocation takes place during a search once the pool is
+	// large enough. Removed entries are recycled via a free list.
+	
+	private final int[] heads;
+	private int[] items = new int[1024];
+	private int[] links = new int[1024];
+	private int used = 0;
+	private int free = -1;
+	
+	BucketQueue(final int buckets) { heads = new int[buckets]; }
+	
+	// Empties the queue and makes sure the pool can hold the given number of entries:
+	void reset(final int capacity) {
+		Arrays.fill(heads,-1);
+		used = 0;
+		free = -1;
+		if (items.length < capacity) {
+			items = null; links = null;
+			items = new int[capacity];
+			links = new int[capacity];
+		}
+	}
+	
+	void add(final int bucket, final int item) {
+		int entry = free;
+		if (entry >= 0) free = links[entry];
+		else {
+			if (used == items.length) grow();
+			entry = used++;
+		}
+		items[entry] = item;
+		links[entry] = heads[bucket];
+		heads[bucket] = entry;
+	}
+	
+	boolean empty(final int bucket) { return heads[bucket] < 0; }
+	
+	int remove(final int bucket) {
+		final int entry = heads[bucket];
+		heads[bucket] = links[entry];
+		links[entry] = free;
+		free = entry;
+		return items[entry];
+	}
+	
+	private void grow() {
+		final int capacity = 2*items.length;
+		final int[] newitems = new int[capacity];
+		final int[] newlinks = new int[capacity];
+		System.arraycopy(items,0,newitems,0,used);
+		System.arraycopy(links,0,newlinks,0,used);
+		items = newitems;
+		links = newlinks;
+	}
+	
+}
+
+// ***************************************************************************
+final class Costs {
+	
+	// Returns a cost image and vector field computed from the
+	// eigenvalues and eigenvectors of the Hessian of the input
+	// image. The gray-value at any point in the cost image is computed
+	// from the eigenvalues of the Hessian matrix at that
+	// point. Specifically, the method computes both (adjusted)
+	// eigenvalues and selects the one with the largest magnitude. Since
+	// in the NeuronJ application we are interested in bright structures
+	// on a dark background, the method stores this absolute eigenvalue
+	// only if the actual eigenvalue is negative. Otherwise it stores a
+	// zero. The eventual largest-eigenvalue image is inverted and
+	// scaled to gray-value range [0,255]. The vector at any point in
+	// the vector field is simply the eigenvector corresponding to the
+	// largest absolute eigenvalue at that point. Both are stored in
+	// quantized form in the returned cost field.
+	//
+	// The image is processed in tiles of TILE x TILE pixels, each
+	// extended by a border wide enough to cover the support of the
+	// derivative kernels at the given scale, so that the result is the
+	// same as for the image as a whole. The tiles are computed on a pool
+	// of NJ.threads threads, and only the eigenvalues of the tiles are
+	// kept until the range for the normalization is known. The range is
+	// gathered per tile while the eigenvalues are selected, and the
+	// partial ranges are reduced as the tiles are joined, after which a
+	// single pass per tile converts the eigenvalues to costs. In between,
+	// the eigenvalues are spilled to a temporary file if they would take
+	// up too much of the heap. This way, the memory needed for the
+	// derivatives is bounded by the tile size rather than the image size.
+	// If requested, the eigenvalues are retained afterwards, so that the
+	// costs for the other neurite appearance can be obtained without
+	// computing the Hessian again.
+	public CostField run(final ImageProcessor image, final boolean bright, final float scale) {
+		
+		NJ.log("Cost image and vector field from Hessian at scale "+scale+" ...");
+		final Progressor pgs = new Progressor();
+		pgs.display(display); pgs.enforce(display);
+		
+		final int xsize = image.getWidth();
+		final int ysize = image.getHeight();
+		final int xtiles = (xsize + TILE - 1)/TILE;
+		final int ytiles = (ysize + TILE - 1)/TILE;
+		final int nrtiles = xtiles*ytiles;
+		final int border = (int)Math.ceil(6*scale) + 4;
+		final CostField field = new CostField(xsize,ysize);
+		final float inv = bright ? 1 : -1;
+		
+		final ForkJoinPool pool = new ForkJoinPool(NJ.threads);
+		NJ.log("   Using "+NJ.threads+" threads on "+nrtiles+" tiles");
+		final Store store = new Store(xsize,ysize,nrtiles,retain);
+		boolean retained = false;
+		try {
+			// Compute Hessian and select adjusted eigenvalues and eigenvectors:
+			pgs.status("Computing eigenimages...");
+			pgs.steps(nrtiles); pgs.range(0.0,0.9); pgs.start();
+			final Eigen[] eigens = new Eigen[nrtiles];
+			for (int t=0; t<nrtiles; ++t) {
+				final int x0 = (t%xtiles)*TILE, y0 = (t/xtiles)*TILE;
+				eigens[t] = new Eigen(image,field,store,t,x0,y0,Math.min(xsize,x0 + TILE),Math.min(ysize,y0 + TILE),border,scale,inv);
+				pool.execute(eigens[t]);
+			}
+			final float[] range = { Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE };
+			for (int t=0; t<nrtiles; ++t) {
+				eigens[t].join();
+				for (int i=0; i<4; i+=2) {
+					if (eigens[t].range[i] < range[i]) range[i] = eigens[t].range[i];
+					if (eigens[t].range[i+1] > range[i+1]) range[i+1] = eigens[t].range[i+1];
+				}
+				eigens[t] = null;
+				pgs.step();
+			}
+			pgs.stop();
+			
+			// Convert eigenvalues to costs:
+			pgs.status("Normalizing eigenimages...");
+			pgs.range(0.9,1.0);
+			normalize(field,store,range[0],range[1],1,pool,pgs);
+			
+			if (retain) {
+				responses = new Responses(store,bright,scale,range);
+				responses.fields[bright ? 0 : 1] = field;
+				retained = true;
+			}
+			return field;
+			
+		} finally { pool.shutdown(); if (!retained) store.close(); }
+	}
+	
+	// Returns the cost field for the given appearance from the responses
+	// kept by an earlier computation. Since the eigenvalues for the other
+	// appearance are the same up to their sign, and the orientations are
+	// the same, only the costs need to be normalized again:
+	CostField run(final Responses responses, final boolean bright) {
+		
+		final int a = bright ? 0 : 1;
+		if (responses.fields[a] != null) return responses.fields[a];
+		
+		NJ.log("Cost image from Hessian at scale "+responses.scale+" for the other appearance ...");
+		final Progressor pgs = new Progressor();
+		pgs.display(display); pgs.enforce(display);
+		pgs.status("Normalizing eigenimages...");
+		
+		final CostField field = responses.fields[1 - a].share();
+		final float sign = (bright == responses.bright) ? 1 : -1;
+		final ForkJoinPool pool = new ForkJoinPool(NJ.threads);
+		try { normalize(field,responses.store,responses.range[2*a],responses.range[2*a + 1],sign,pool,pgs); }
+		finally { pool.shutdown(); }
+		responses.fields[a] = field;
+		return field;
+	}
+	
+	// Converts the stored eigenvalues, multiplied by the given sign, to
+	// costs in the given range for all tiles of the field:
+	private static void normalize(final CostField field, final Store store, final float minval, final float maxval, final float sign, final ForkJoinPool pool, final Progressor pgs) {
+		
+		final int xsize = field.xsize();
+		final int ysize = field.ysize();
+		final int xtiles = (xsize + TILE - 1)/TILE;
+		final int nrtiles = xtiles*((ysize + TILE - 1)/TILE);
+		pgs.steps(nrtiles); pgs.start();
+		final Normalize[] normalizes = new Normalize[nrtiles];
+		for (int t=0; t<nrtiles; ++t) {
+			final int x0 = (t%xtiles)*TILE, y0 = (t/xtiles)*TILE;
+			normalizes[t] = new Normalize(field,store,t,x0,y0,Math.min(xsize,x0 + TILE),Math.min(ysize,y0 + TILE),minval,maxval,sign);
+			pool.execute(normalizes[t]);
+		}
+		for (int t=0; t<nrtiles; ++t) { normalizes[t].join(); pgs.step(); }
+		pgs.stop();
+	}
+	
+	// Determines whether the eigenvalues are kept after the computation,
+	// to be available from responses() until closed:
+	void retain(final boolean retain) { this.retain = retain; }
+	
+	private boolean retain = false;
+	
+	Responses responses() { return responses; }
+	
+	private Responses responses = null;
+	
+	// Eigenvalues kept by a computation, with their ranges for both
+	// appearances, and the cost fields computed from them so far:
+	static final class Responses {
+		
+		private final Store store;
+		private final boolean bright;
+		private final float[] range;
+		private final CostField[] fields = new CostField[2];
+		final float scale;
+		
+		private Responses(final Store store, final boolean bright, final float scale, final float[] range) {
+			this.store = store; this.bright = bright; this.scale = scale;
+			// The ranges are in the order of the appearances (bright = 0 and dark = 1):
+			this.range = bright ? range : new float[] { range[2], range[3], range[0], range[1] };
+		}
+		
+		void close() { store.close(); fields[0] = fields[1] = null; }
+		
+	}
+	
+	// Returns a lazy cost field for the given image, whose tiles are
+	// computed only for the regions needed (see CostField). At least the
+	// tiles for two search windows are kept:
+	CostField lazy(final ImageProcessor image, final boolean bright, final float scale) {
+		
+		NJ.log("Costs computed on demand for regions of the image at scale "+scale);
+		final long window = NJ.dijkrange/CostField.TILE + 3;
+		final long budget = Runtime.getRuntime().maxMemory()/(8L*2*CostField.TILE*CostField.TILE);
+		final int capacity = (int)Math.min(Integer.MAX_VALUE,Math.max(2*window*window,budget));
+		return new CostField(image.getWidth(),image.getHeight(),new Source(image,bright,scale),capacity);
+	}
+	
+	// Determines whether the costs for the given image are better
+	// computed on demand than as a whole:
+	static boolean lazy(final ImageProcessor image) {
+		
+		return (long)image.getWidth()*image.getHeight() > LAZY;
+	}
+	
+	private static final long LAZY = 1L << 26;
+	
+	// Determines whether progress is displayed (not for computations in the background):
+	void display(final boolean display) { this.display = display; }
+	
+	private boolean display = true;
+	
+	private static final int TILE = 1024;
+	
+	// Computes the adjusted eigenvalues and eigenvectors for a tile:
+	private static final class Eigen extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ImageProcessor image;
+		private final CostField field;
+		private final Store store;
+		private final int tile, x0, y0, x1, y1, border;
+		private final float scale, inv;
+		final float[] range = { Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE };
+		
+		Eigen(final ImageProcessor image, final CostField field, final Store store, final int tile, final int x0, final int y0, final int x1, final int y1, final int border, final float scale, final float inv) {
+			this.image = image; this.field = field; this.store = store;
+			this.tile = tile; this.x0 = x0; this.y0 = y0; this.x1 = x1; this.y1 = y1;
+			this.border = border; this.scale = scale; this.inv = inv;
+		}
+		
+		protected void compute() {
+			
+			final int w = x1 - x0;
+			final float[] value = new float[w*(y1 - y0)];
+			final byte[] angles = new byte[value.length];
+			eigen(image,x0,y0,x1,y1,border,scale,inv,value,angles,w,range);
+			// Also gather the range for the other appearance:
+			float minval = range[2], maxval = range[3];
+			for (int i=0; i<value.length; ++i) {
+				final float v = Math.max(-value[i],0f);
+				minval = Math.min(minval,v);
+				maxval = Math.max(maxval,v);
+			}
+			range[2] = minval; range[3] = maxval;
+			for (int y=y0; y<y1; ++y) field.angles(x0,y,angles,(y - y0)*w,w);
+			store.put(tile,y0,x0,y1,value);
+		}
+		
+	}
+	
+	// Computes the adjusted eigenvalues and the orientations of the
+	// corresponding eigenvectors for the given region of the image,
+	// using the given border around the region, and stores them in the
+	// given arrays with the given row length. The given range of
+	// eigenvalues { min, max } is extended to include those computed:
+	static void eigen(final ImageProcessor image, final int x0, final int y0, final int x1, final int y1, final int border, final float scale, final float inv, final float[] value, final byte[] angles, final int stride, final float[] range) {
+		
+		// Compute Hessian components of the region including its border:
+		final int bx0 = Math.max(0,x0 - border), bx1 = Math.min(image.getWidth(),x1 + border);
+		final int by0 = Math.max(0,y0 - border), by1 = Math.min(image.getHeight(),y1 + border);
+		final int bw = bx1 - bx0;
+		final Image inImage = crop(image,bx0,by0,bx1,by1);
+		final Differentiator differ = new Differentiator();
+		// The differentiator overwrites a floating-point input image, so
+		// each derivative is computed from a copy of the region:
+		final float[] ahxx = (float[])differ.run(inImage.duplicate(),scale,2,0,0).imageplus().getStack().getPixels(1);
+		final float[] ahxy = (float[])differ.run(inImage.duplicate(),scale,1,1,0).imageplus().getStack().getPixels(1);
+		final float[] ahyy = (float[])differ.run(inImage.duplicate(),scale,0,2,0).imageplus().getStack().getPixels(1);
+		
+		select(ahxx,ahxy,ahyy,(y0 - by0)*bw + (x0 - bx0),bw,x1 - x0,y1 - y0,inv,value,angles,0,stride,range);
+	}
+	
+	// Returns a floating-point copy of the given region of the image:
+	static Image crop(final ImageProcessor image, final int x0, final int y0, final int x1, final int y1) {
+		
+		final int xsize = image.getWidth();
+		final int w = x1 - x0;
+		final float[] pixels = new float[w*(y1 - y0)];
+		for (int y=y0, i=0; y<y1; ++y)
+			for (int x=x0, j=y*xsize + x0; x<x1; ++x, ++i, ++j)
+				pixels[i] = image.getf(j);
+		return new FloatImage(new ImagePlus("",new FloatProcessor(w,y1 - y0,pixels,null)));
+	}
+	
+	// Selects the adjusted eigenvalues and orientations for a region of
+	// w x h pixels from the given Hessian components, starting at the
+	// given offset in rows of the given length, and stores them in the
+	// given arrays starting at the given index with the given row length:
+	static void select(final float[] ahxx, final float[] ahxy, final float[] ahyy, final int offset, final int length, final int w, final int h, final float inv, final float[] value, final byte[] angles, final int start, final int stride, final float[] range) {
+		
+		// Each row is processed in three passes: the eigenvalues, which is
+		// plain arithmetic the compiler can vectorize, the selection, which
+		// uses bit masks instead of branches, and the orientations. The
+		// results are bit for bit the same as with a single branching pass:
+		final float[] L1 = new float[w], L2 = new float[w];
+		final float[] b2 = new float[w], d = new float[w];
+		float minval = range[0], maxval = range[1];
+		for (int y=0; y<h; ++y) {
+			final int ioffset = offset + y*length;
+			final int koffset = start + y*stride;
+			for (int j=0; j<w; ++j) {
+				final int i = ioffset + j;
+				final float b1 = inv*(ahxx[i] + ahyy[i]);
+				b2[j] = inv*(ahxx[i] - ahyy[i]);
+				d[j] = (float)Math.sqrt(4*ahxy[i]*ahxy[i] + b2[j]*b2[j]);
+				L1[j] = (b1 + 2*d[j])/3.0f;
+				L2[j] = (b1 - 2*d[j])/3.0f;
+			}
+			// Select the eigenvalue with the largest magnitude, storing it
+			// negated, so that its absolute value counts only if it is
+			// negative, and the corresponding vector component (all ones
+			// in the mask means L1 is selected):
+			for (int j=0; j<w; ++j) {
+				final int mask = (Float.floatToRawIntBits(Math.abs(L2[j])) - Float.floatToRawIntBits(Math.abs(L1[j]))) >> 31;
+				final float L = Float.intBitsToFloat((Float.floatToRawIntBits(L1[j]) & mask) | (Float.floatToRawIntBits(L2[j]) & ~mask));
+				final float v = Math.max(-L,0f);
+				value[koffset + j] = -L;
+				minval = Math.min(minval,v);
+				maxval = Math.max(maxval,v);
+				b2[j] += Float.intBitsToFloat(Float.floatToRawIntBits(d[j]) ^ (mask & 0x80000000));
+			}
+			for (int j=0; j<w; ++j)
+				angles[koffset + j] = CostField.orientation(b2[j],2*inv*ahxy[ioffset + j]);
+		}
+		range[0] = minval; range[1] = maxval;
+	}
+	
+	// Converts the eigenvalues to costs for a tile:
+	private static final class Normalize extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final CostField field;
+		private final Store store;
+		private final int tile, x0, y0, x1, y1;
+		private final float minval, maxval, sign;
+		
+		Normalize(final CostField field, final Store store, final int tile, final int x0, final int y0, final int x1, final int y1, final float minval, final float maxval, final float sign) {
+			this.field = field; this.store = store;
+			this.tile = tile; this.x0 = x0; this.y0 = y0; this.x1 = x1; this.y1 = y1;
+			this.minval = minval; this.maxval = maxval; this.sign = sign;
+		}
+		
+		protected void compute() {
+			
+			final int w = x1 - x0;
+			final float[] value = store.get(tile,y0,x0,y1,w*(y1 - y0));
+			final byte[] costs = new byte[w];
+			for (int y=y0; y<y1; ++y) {
+				normalize(value,(y - y0)*w,costs,w,minval,maxval,sign);
+				field.costs(x0,y,costs,0,w);
+			}
+		}
+		
+	}
+	
+	// Converts the given eigenvalues, as stored by select() and
+	// multiplied by the given sign, to costs in the given range:
+	static void normalize(final float[] value, final int start, final byte[] costs, final int length, final float minval, final float maxval, final float sign) {
+		
+		final float roof = 255;
+		final float offset = 0;
+		final float factor = (roof - offset)/(maxval - minval);
+		for (int i=0; i<length; ++i) costs[i] = CostField.level(roof - (Math.max(sign*value[start + i],0f) - minval)*factor);
+	}
+	
+	// Computes the tiles of a lazy cost field from the image. Since the
+	// costs are normalized, the range of the eigenvalues is estimated for
+	// the whole image before the first tiles are computed, so that the
+	// costs do not depend on the order in which regions are computed. A
+	// downsampled copy of the image locates the strongest ridges, and the
+	// range is taken from the eigenvalues at full resolution of the tiles
+	// containing them. If the strongest ridge is missed, which may happen
+	// if many tiles are alike, the range falls short by a little, and the
+	// costs may differ from those computed at once by several levels:
+	static final class Source {
+		
+		private final ImageProcessor image;
+		private final float inv, scale;
+		private final int border;
+		private boolean calibrated = false;
+		private float minval, maxval;
+		
+		Source(final ImageProcessor image, final boolean bright, final float scale) {
+			this.image = image;
+			this.inv = bright ? 1 : -1;
+			this.scale = scale;
+			border = (int)Math.ceil(6*scale) + 4;
+		}
+		
+		void compute(final CostField field, final int[] list, final int count, final CostField.Tile[] results) {
+			
+			if (!calibrated) calibrate(field);
+			NJ.log("Computing costs for "+count+" tiles...");
+			final Part[] parts = parts(field,list,count);
+			final int size = CostField.TILE*CostField.TILE;
+			for (int k=0; k<count; ++k) {
+				final byte[] costs = new byte[size];
+				normalize(parts[k].value,0,costs,size,minval,maxval,1);
+				results[k] = new CostField.Tile(costs,parts[k].angles);
+			}
+		}
+		
+		// Computes the eigenvalues of the given tiles:
+		private Part[] parts(final CostField field, final int[] list, final int count) {
+			
+			final int size = CostField.TILE*CostField.TILE;
+			final Part[] parts = new Part[count];
+			for (int k=0; k<count; ++k) parts[k] = new Part(this,field.bounds(list[k]),new float[size],new byte[size]);
+			if (count == 1) parts[0].compute();
+			else {
+				final ForkJoinPool pool = new ForkJoinPool(NJ.threads);
+				try { pool.invoke(new Parts(parts)); }
+				finally { pool.shutdown(); }
+			}
+			return parts;
+		}
+		
+		// Estimates the range of the eigenvalues of the whole image:
+		private void calibrate(final CostField field) {
+			
+			NJ.log("Estimating the eigenvalue range of the image...");
+			final int xsize = image.getWidth(), ysize = image.getHeight();
+			
+			// Average the image over blocks of f x f pixels:
+			final int f = (int)Math.max(1,Math.ceil(Math.sqrt((double)xsize*ysize/SAMPLE)));
+			final int cxsize = (xsize + f - 1)/f, cysize = (ysize + f - 1)/f;
+			final float[] sums = new float[cxsize*cysize];
+			for (int y=0; y<ysize; ++y) {
+				final int cy = (y/f)*cxsize;
+				for (int x=0, i=y*xsize; x<xsize; ++x, ++i) sums[cy + x/f] += image.getf(i);
+			}
+			for (int cy=0; cy<cysize; ++cy)
+				for (int cx=0; cx<cxsize; ++cx)
+					sums[cy*cxsize + cx] /= (Math.min(xsize,(cx + 1)*f) - cx*f)*(Math.min(ysize,(cy + 1)*f) - cy*f);
+			
+			// Find the tiles containing the strongest ridges in the copy:
+			final float cscale = Math.max(1,scale/f);
+			final float[] value = new float[sums.length];
+			final byte[] angles = new byte[sums.length];
+			eigen(new FloatProcessor(cxsize,cysize,sums,null),0,0,cxsize,cysize,0,cscale,inv,value,angles,cxsize,new float[2]);
+			final int xtiles = (xsize + CostField.TILE - 1)/CostField.TILE;
+			final float[] strength = new float[xtiles*((ysize + CostField.TILE - 1)/CostField.TILE)];
+			for (int cy=0, i=0; cy<cysize; ++cy)
+				for (int cx=0; cx<cxsize; ++cx, ++i) {
+					final int t = (cy*f/CostField.TILE)*xtiles + cx*f/CostField.TILE;
+					strength[t] = Math.max(strength[t],value[i]);
+				}
+			final int count = Math.min(SAMPLES,strength.length);
+			final int[] list = new int[count];
+			for (int k=0; k<count; ++k) {
+				int strongest = -1;
+				for (int t=0; t<strength.length; ++t)
+					if (strength[t] != Float.NEGATIVE_INFINITY && (strongest < 0 || strength[t] > strength[strongest])) strongest = t;
+				list[k] = strongest;
+				strength[strongest] = Float.NEGATIVE_INFINITY;
+			}
+			
+			// Take the range from those tiles at full resolution:
+			final Part[] parts = parts(field,list,count);
+			minval = Float.MAX_VALUE;
+			maxval = -Float.MAX_VALUE;
+			for (int k=0; k<count; ++k) {
+				minval = Math.min(minval,parts[k].range[0]);
+				maxval = Math.max(maxval,parts[k].range[1]);
+			}
+			calibrated = true;
+			NJ.log("Calibrated costs on eigenvalue range ["+minval+","+maxval+"]");
+		}
+		
+		// Maximum number of pixels of the downsampled copy, and number of tiles sampled:
+		private static final int SAMPLE = 1 << 20;
+		private static final int SAMPLES = 16;
+		
+	}
+	
+	// Computes the eigenvalues and orientations for a tile of a lazy cost field:
+	private static final class Part extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Source source;
+		final int[] bounds;
+		final float[] value;
+		final byte[] angles;
+		final float[] range = { Float.MAX_VALUE, -Float.MAX_VALUE };
+		
+		Part(final Source source, final int[] bounds, final float[] value, final byte[] angles) {
+			this.source = source; this.bounds = bounds;
+			this.value = value; this.angles = angles;
+		}
+		
+		protected void compute() {
+			eigen(source.image,bounds[0],bounds[1],bounds[2],bounds[3],source.border,source.scale,source.inv,value,angles,CostField.TILE,range);
+		}
+		
+	}
+	
+	private static final class Parts extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Part[] parts;
+		
+		Parts(final Part[] parts) { this.parts = parts; }
+		
+		protected void compute() { invokeAll(parts); }
+		
+	}
+	
+	// Eigenvalues of the tiles, kept in memory if they take up less than a
+	// quarter of the maximum heap size, and otherwise written to a
+	// temporary file. In the file, the values of a tile are at the
+	// position of its first pixel in a row-major order of the tiles.
+	// Unless the values are retained, those in memory are released as
+	// soon as they have been read:
+	private static final class Store {
+		
+		private final int xsize;
+		private final boolean retain;
+		private final float[][] values;
+		private File file = null;
+		private RandomAccessFile raf = null;
+		private FileChannel channel = null;
+		
+		Store(final int xsize, final int ysize, final int nrtiles, final boolean retain) {
+			
+			this.xsize = xsize;
+			this.retain = retain;
+			values = new float[nrtiles][];
+			if (4L*xsize*ysize > Runtime.getRuntime().maxMemory()/4) try {
+				file = File.createTempFile(NJ.NAME,".tmp");
+				file.deleteOnExit();
+				raf = new RandomAccessFile(file,"rw");
+				channel = raf.getChannel();
+				NJ.log("   Storing eigenvalues in "+file.getPath());
+			} catch (IOException e) {
+				NJ.log("   Could not create temporary file: keeping eigenvalues in memory");
+				close();
+			}
+		}
+		
+		void put(final int tile, final int y0, final int x0, final int y1, final float[] value) {
+			
+			if (channel == null) { values[tile] = value; return; }
+			final ByteBuffer buffer = ByteBuffer.allocate(4*value.length);
+			buffer.asFloatBuffer().put(value);
+			long position = 4L*(y0*(long)xsize + x0*(long)(y1 - y0));
+			try { while (buffer.hasRemaining()) position += channel.write(buffer,position); }
+			catch (IOException e) { throw new RuntimeException("Could not write eigenvalues to "+file.getPath(),e); }
+		}
+		
+		float[] get(final int tile, final int y0, final int x0, final int y1, final int length) {
+			
+			if (channel == null) { final float[] value = values[tile]; if (!retain) values[tile] = null; return value; }
+			final ByteBuffer buffer = ByteBuffer.allocate(4*length);
+			long position = 4L*(y0*(long)xsize + x0*(long)(y1 - y0));
+			try { while (buffer.hasRemaining()) { final int n = channel.read(buffer,position); if (n < 0) throw new IOException("Unexpected end of file"); position += n; } }
+			catch (IOException e) { throw new RuntimeException("Could not read eigenvalues from "+file.getPath(),e); }
+			buffer.flip();
+			final float[] value = new float[length];
+			buffer.asFloatBuffer().get(value);
+			return value;
+		}
+		
+		void close() {
+			
+			try { if (raf != null) raf.close(); } catch (IOException e) { }
+			if (file != null) file.delete();
+			raf = null; channel = null; file = null;
+			Arrays.fill(values,null);
+		}
+		
+	}
+	
+}
+
+// ***************************************************************************
+
+final class ScaleSpace {
+	
+	// Hessian responses of an image at a set of scales, from which the
+	// costs for any subset of the scales are combined. The response at
+	// each scale consists of the adjusted eigenvalues and orientations
+	// selected as in Costs. Since the derivatives decrease with scale,
+	// the eigenvalues are normalized by the square of the scale, and the
+	// largest normalized eigenvalue at each pixel is used for the costs,
+	// together with the orientation at the same scale. The responses are
+	// kept, so that changing the scales requires computing only those
+	// not computed before, and otherwise only combining the responses.
+	// The eigenvalues are kept for bright neurites, as those for dark
+	// neurites are the same up to their sign, so that changing the
+	// neurite appearance also requires only combining.
+	//
+	// The scales missing are computed in a single pass over the tiles of
+	// the image, in increasing order. Each tile is smoothed
+	// incrementally: the tile smoothed at a scale is obtained from the
+	// tile smoothed at the previous scale, using the difference of the
+	// two scales in quadrature, so that the smoothing work is shared by
+	// all scales. The Hessian at each scale is then computed by finite
+	// differences of the smoothed tile, instead of by convolution with
+	// derivative kernels as in Costs, whose results therefore differ
+	// slightly from those at a single scale.
+	
+	private final ImageProcessor image;
+	private float[] scales = new float[0];
+	private float[][] values = new float[0][];
+	private byte[][] angles = new byte[0][];
+	
+	ScaleSpace(final ImageProcessor image) {
+		
+		this.image = image;
+	}
+	
+	// Returns the cost field for the given scales and neurite appearance:
+	CostField costs(final float[] set, final boolean bright) {
+		
+		NJ.log("Cost image and vector field from Hessian at scales "+NJ.scales(set)+" ...");
+		final Progressor pgs = new Progressor();
+		pgs.display(true); pgs.enforce(true);
+		
+		final int xsize = image.getWidth();
+		final int ysize = image.getHeight();
+		final ForkJoinPool pool = new ForkJoinPool(NJ.threads);
+		try {
+			// Compute the responses at the scales missing:
+			int count = 0;
+			final float[] missing = new float[set.length];
+			for (int k=0; k<set.length; ++k) if (index(set[k]) < 0) missing[count++] = set[k];
+			double fraction = 0.0;
+			if (count > 0) {
+				fraction = 0.9;
+				discard(set,count);
+				compute(Arrays.copyOf(missing,count),pool,pgs,fraction);
+			} else NJ.log("   Using responses computed before");
+			
+			// Combine the responses at the given scales:
+			final int bands = (ysize + CostField.TILE - 1)/CostField.TILE;
+			final int[] selected = new int[set.length];
+			for (int k=0; k<set.length; ++k) selected[k] = index(set[k]);
+			final CostField field = new CostField(xsize,ysize);
+			pgs.status("Combining eigenimages...");
+			pgs.steps(2*bands); pgs.range(fraction,1.0); pgs.start();
+			final Combine[] combines = new Combine[bands];
+			for (int b=0; b<bands; ++b) {
+				combines[b] = new Combine(this,selected,bright,null,b*CostField.TILE,Math.min(ysize,(b + 1)*CostField.TILE),0,0);
+				pool.execute(combines[b]);
+			}
+			float minval = Float.MAX_VALUE;
+			float maxval = -Float.MAX_VALUE;
+			for (int b=0; b<bands; ++b) {
+				combines[b].join();
+				if (combines[b].range[0] < minval) minval = combines[b].range[0];
+				if (combines[b].range[1] > maxval) maxval = combines[b].range[1];
+				pgs.step();
+			}
+			for (int b=0; b<bands; ++b) {
+				combines[b] = new Combine(this,selected,bright,field,b*CostField.TILE,Math.min(ysize,(b + 1)*CostField.TILE),minval,maxval);
+				pool.execute(combines[b]);
+			}
+			for (int b=0; b<bands; ++b) { combines[b].join(); pgs.step(); }
+			pgs.stop();
+			
+			return field;
+			
+		} finally { pool.shutdown(); }
+	}
+	
+	// Returns the index of the given scale in the responses, or -1 if it has not been computed:
+	private int index(final float scale) {
+		
+		for (int k=0; k<scales.length; ++k) if (scales[k] == scale) return k;
+		return -1;
+	}
+	
+	// Discards the responses at scales other than the given ones if
+	// the responses at the given number of additional scales would
+	// otherwise take up more than half of the maximum heap size:
+	private void discard(final float[] set, final int count) {
+		
+		final long pixels = (long)image.getWidth()*image.getHeight();
+		if (5L*pixels*(scales.length + count) <= Runtime.getRuntime().maxMemory()/2) return;
+		int kept = 0;
+		for (int k=0; k<scales.length; ++k) {
+			boolean used = false;
+			for (int s=0; s<set.length; ++s) if (set[s] == scales[k]) used = true;
+			if (used) { scales[kept] = scales[k]; values[kept] = values[k]; angles[kept] = angles[k]; ++kept; }
+		}
+		if (kept < scales.length) NJ.log("   Discarding responses at "+(scales.length - kept)+" scales");
+		scales = Arrays.copyOf(scales,kept);
+		values = Arrays.copyOf(values,kept);
+		angles = Arrays.copyOf(angles,kept);
+	}
+	
+	// Computes the responses at the given scales, which are in increasing order:
+	private void compute(final float[] missing, final ForkJoinPool pool, final Progressor pgs, final double fraction) {
+		
+		final int xsize = image.getWidth();
+		final int ysize = image.getHeight();
+		final int xtiles = (xsize + TILE - 1)/TILE;
+		final int ytiles = (ysize + TILE - 1)/TILE;
+		final int nrtiles = xtiles*ytiles;
+		final int count = missing.length;
+		final float[][] mvalues = new float[count][xsize*ysize];
+		final byte[][] mangles = new byte[count][xsize*ysize];
+		
+		// The border covers the kernels of all smoothing steps:
+		int border = 0;
+		for (int k=0; k<count; ++k) border += (int)Math.ceil(6*increment(missing,k)) + 4;
+		
+		NJ.log("   Using "+NJ.threads+" threads on "+nrtiles+" tiles for "+count+" scales");
+		pgs.status("Computing eigenimages...");
+		pgs.steps(nrtiles); pgs.range(0.0,fraction); pgs.start();
+		final Responses[] responses = new Responses[nrtiles];
+		for (int t=0; t<nrtiles; ++t) {
+			final int x0 = (t%xtiles)*TILE, y0 = (t/xtiles)*TILE;
+			responses[t] = new Responses(this,missing,mvalues,mangles,x0,y0,Math.min(xsize,x0 + TILE),Math.min(ysize,y0 + TILE),border);
+			pool.execute(responses[t]);
+		}
+		for (int t=0; t<nrtiles; ++t) { responses[t].join(); responses[t] = null; pgs.step(); }
+		pgs.stop();
+		
+		// Add the responses, keeping the scales in increasing order:
+		final int total = scales.length + count;
+		final float[] nscales = new float[total];
+		final float[][] nvalues = new float[total][];
+		final byte[][] nangles = new byte[total][];
+		for (int k=0, i=0, m=0; k<total; ++k) {
+			if (m == count || (i < scales.length && scales[i] < missing[m])) {
+				nscales[k] = scales[i]; nvalues[k] = values[i]; nangles[k] = angles[i]; ++i;
+			} else {
+				nscales[k] = missing[m]; nvalues[k] = mvalues[m]; nangles[k] = mangles[m]; ++m;
+			}
+		}
+		scales = nscales; values = nvalues; angles = nangles;
+	}
+	
+	// Returns the scale at which the image smoothed at the previous of
+	// the given scales is smoothed to obtain the given scale:
+	private static float increment(final float[] scales, final int k) {
+		
+		final float previous = (k > 0) ? scales[k-1] : 0;
+		return (float)Math.sqrt(scales[k]*scales[k] - previous*previous);
+	}
+	
+	private static final int TILE = 1024;
+	
+	// Computes the responses at a number of scales for a tile:
+	private static final class Responses extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ScaleSpace space;
+		private final float[] scales;
+		private final float[][] values;
+		private final byte[][] angles;
+		private final int x0, y0, x1, y1, border;
+		
+		Responses(final ScaleSpace space, final float[] scales, final float[][] values, final byte[][] angles, final int x0, final int y0, final int x1, final int y1, final int border) {
+			this.space = space; this.scales = scales; this.values = values; this.angles = angles;
+			this.x0 = x0; this.y0 = y0; this.x1 = x1; this.y1 = y1; this.border = border;
+		}
+		
+		protected void compute() {
+			
+			final ImageProcessor image = space.image;
+			final int xsize = image.getWidth();
+			final int bx0 = Math.max(0,x0 - border), bx1 = Math.min(xsize,x1 + border);
+			final int by0 = Math.max(0,y0 - border), by1 = Math.min(image.getHeight(),y1 + border);
+			final int bw = bx1 - bx0;
+			final float[] range = { Float.MAX_VALUE, -Float.MAX_VALUE };
+			final Differentiator differ = new Differentiator();
+			final int bh = by1 - by0;
+			final float[] ahxx = new float[bw*bh];
+			final float[] ahxy = new float[bw*bh];
+			final float[] ahyy = new float[bw*bh];
+			Image smoothed = Costs.crop(image,bx0,by0,bx1,by1);
+			for (int k=0; k<scales.length; ++k) {
+				smoothed = differ.run(smoothed,increment(scales,k),0,0,0);
+				hessian((float[])smoothed.imageplus().getStack().getPixels(1),bw,bh,ahxx,ahxy,ahyy);
+				Costs.select(ahxx,ahxy,ahyy,(y0 - by0)*bw + (x0 - bx0),bw,x1 - x0,y1 - y0,1,values[k],angles[k],y0*xsize + x0,xsize,range);
+			}
+		}
+		
+		// Computes the Hessian components of the given smoothed tile by
+		// central differences, repeating the pixels at the edges:
+		private static void hessian(final float[] pixels, final int w, final int h, final float[] ahxx, final float[] ahxy, final float[] ahyy) {
+			
+			for (int y=0; y<h; ++y) {
+				final int row = y*w;
+				final int above = (y > 0) ? row - w : row;
+				final int below = (y + 1 < h) ? row + w : row;
+				for (int x=0; x<w; ++x) {
+					final int left = (x > 0) ? x - 1 : x;
+					final int right = (x + 1 < w) ? x + 1 : x;
+					final float p = pixels[row + x];
+					ahxx[row + x] = pixels[row + left] - 2*p + pixels[row + right];
+					ahyy[row + x] = pixels[above + x] - 2*p + pixels[below + x];
+					ahxy[row + x] = (pixels[below + right] - pixels[below + left] - pixels[above + right] + pixels[above + left])/4;
+				}
+			}
+		}
+		
+	}
+	
+	// Selects the largest normalized eigenvalue at each pixel of a band of
+	// rows over the given scales. Without a field, only gathers the range
+	// of the selected eigenvalues, and otherwise stores the costs and
+	// orientations in the field, normalized to the given range:
+	private static final class Combine extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ScaleSpace space;
+		private final int[] selected;
+		private final float sign;
+		private final CostField field;
+		private final int y0, y1;
+		private final float minval, maxval;
+		final float[] range = { Float.MAX_VALUE, -Float.MAX_VALUE };
+		
+		Combine(final ScaleSpace space, final int[] selected, final boolean bright, final CostField field, final int y0, final int y1, final float minval, final float maxval) {
+			this.space = space; this.selected = selected; this.field = field;
+			this.sign = bright ? 1 : -1;
+			this.y0 = y0; this.y1 = y1; this.minval = minval; this.maxval = maxval;
+		}
+		
+		protected void compute() {
+			
+			final int xsize = space.image.getWidth();
+			final float[] value = new float[xsize];
+			final byte[] orientations = new byte[xsize];
+			final byte[] costs = new byte[xsize];
+			float min = range[0], max = range[1];
+			for (int y=y0; y<y1; ++y) {
+				final int offset = y*xsize;
+				for (int s=0; s<selected.length; ++s) {
+					final int k = selected[s];
+					final float factor = space.scales[k]*space.scales[k];
+					final float[] kvalues = space.values[k];
+					final byte[] kangles = space.angles[k];
+					if (s == 0) for (int x=0; x<xsize; ++x) {
+						value[x] = factor*Math.max(sign*kvalues[offset + x],0f);
+						orientations[x] = kangles[offset + x];
+					} else for (int x=0; x<xsize; ++x) {
+						final float v = factor*Math.max(sign*kvalues[offset + x],0f);
+						if (v > value[x]) { value[x] = v; orientations[x] = kangles[offset + x]; }
+					}
+				}
+				if (field == null) for (int x=0; x<xsize; ++x) {
+					min = Math.min(min,value[x]);
+					max = Math.max(max,value[x]);
+				} else {
+					Costs.normalize(value,0,costs,xsize,minval,maxval,1);
+					field.costs(0,y,costs,0,xsize);
+					field.angles(0,y,orientations,0,xsize);
+				}
+			}
+			range[0] = min; range[1] = max;
+		}
+		
+	}
+	
+}
+
+// ***************************************************************************
+
+final class CostField {
+	
+	// Compact storage of the cost image and vector field computed by
+	// Costs: one byte per pixel for the cost, which is already in the
+	// range [0,255], and one byte per pixel for the orientation of the
+	// vector, which is of unit length. Since the vectors are used only
+	// up to their sign, the orientation is quantized over [0,pi) into
+	// ANGLES levels. The remaining byte value indicates a zero vector
+	// (occurring in perfectly flat image regions).
+	//
+	// The pixels are stored in tiles of TILE x TILE pixels. Normally all
+	// tiles are present, but a field may also be lazy, in which case its
+	// tiles are computed when first needed, either by the given source
+	// or by downsampling a parent field. Tiles are best computed for a
+	// whole region at once by prepare(), and the tiles least recently
+	// used are discarded once more than a given number are present.
+	// Tiles are computed only by the path searcher and the prefetcher;
+	// the event dispatch thread reads lazy fields through peek(), which
+	// never computes tiles, so that it is never blocked.
+	
+	static final int ANGLES = 255;
+	static final int NOVECTOR = 255;
+	
+	static final int TILE = 256;
+	private static final int SHIFT = 8;
+	private static final int MASK = TILE - 1;
+	
+	private static final float[] cosines = new float[256];
+	private static final float[] sines = new float[256];
+	static {
+		for (int a=0; a<ANGLES; ++a) {
+			final double angle = a*Math.PI/ANGLES;
+			cosines[a] = (float)Math.cos(angle);
+			sines[a] = (float)Math.sin(angle);
+		}
+		cosines[NOVECTOR] = sines[NOVECTOR] = 0;
+	}
+	
+	// The contents of a tile are filled in before it is constructed, so
+	// that other threads see them as soon as they see the tile:
+	static final class Tile {
+		final byte[] costs;
+		final byte[] angles;
+		Tile(final byte[] costs, final byte[] angles) { this.costs = costs; this.angles = angles; }
+	}
+	
+	private final int xsize, ysize;
+	private final int xtiles, ytiles;
+	private final Tile[] tiles;
+	
+	// State of lazy fields:
+	private final Costs.Source source;
+	private final CostField parent;
+	private final long[] used;
+	private final int capacity;
+	private long clock = 0;
+	private int present = 0;
+	
+	CostField(final int xsize, final int ysize) {
+		
+		this(xsize,ysize,null,null,0);
+		for (int t=0; t<tiles.length; ++t)
+			tiles[t] = new Tile(new byte[TILE*TILE],new byte[TILE*TILE]);
+		present = tiles.length;
+	}
+	
+	// Returns a new field with the same orientations as this eager field,
+	// whose costs are still to be filled in:
+	CostField share() {
+		
+		final CostField field = new CostField(xsize,ysize,null,null,0);
+		for (int t=0; t<tiles.length; ++t)
+			field.tiles[t] = new Tile(new byte[TILE*TILE],tiles[t].angles);
+		field.present = tiles.length;
+		return field;
+	}
+	
+	// Creates a lazy field whose tiles are computed by the given source,
+	// keeping at most about the given number of tiles:
+	CostField(final int xsize, final int ysize, final Costs.Source source, final int capacity) {
+		
+		this(xsize,ysize,source,null,capacity);
+	}
+	
+	private CostField(final int xsize, final int ysize, final Costs.Source source, final CostField parent, final int capacity) {
+		
+		this.xsize = xsize;
+		this.ysize = ysize;
+		xtiles = (xsize + MASK) >> SHIFT;
+		ytiles = (ysize + MASK) >> SHIFT;
+		tiles = new Tile[xtiles*ytiles];
+		this.source = source;
+		this.parent = parent;
+		used = (source != null || parent != null) ? new long[tiles.length] : null;
+		this.capacity = capacity;
+	}
+	
+	int xsize() { return xsize; }
+	
+	int ysize() { return ysize; }
+	
+	boolean lazy() { return used != null; }
+	
+	int cost(final int x, final int y) { return tile(x,y).costs[((y & MASK) << SHIFT) + (x & MASK)]&0xFF; }
+	
+	int angle(final int x, final int y) { return tile(x,y).angles[((y & MASK) << SHIFT) + (x & MASK)]&0xFF; }
+	
+	float vx(final int x, final int y) { return cosines[angle(x,y)]; }
+	
+	float vy(final int x, final int y) { return sines[angle(x,y)]; }
+	
+	static float cosine(final int angle) { return cosines[angle]; }
+	
+	static float sine(final int angle) { return sines[angle]; }
+	
+	// Copies the given costs or orientations into the row of pixels starting at the given pixel:
+	void costs(final int x, final int y, final byte[] costs, final int offset, final int length) { copy(x,y,costs,offset,length,true); }
+	
+	void angles(final int x, final int y, final byte[] angles, final int offset, final int length) { copy(x,y,angles,offset,length,false); }
+	
+	// Returns the cost of the given pixel, or -1 if its tile is not present:
+	int peek(final int x, final int y) {
+		
+		final Tile tile = tiles[(y >> SHIFT)*xtiles + (x >> SHIFT)];
+		return (tile != null) ? tile.costs[((y & MASK) << SHIFT) + (x & MASK)]&0xFF : -1;
+	}
+	
+	// Like row(), but returns false instead of computing missing tiles:
+	boolean peek(int x, final int y, final byte[] costs, final byte[] angles, int offset, int length) {
+		
+		while (length > 0) {
+			final Tile tile = tiles[(y >> SHIFT)*xtiles + (x >> SHIFT)];
+			if (tile == null) return false;
+			final int n = Math.min(length,TILE - (x & MASK));
+			final int index = ((y & MASK) << SHIFT) + (x & MASK);
+			System.arraycopy(tile.costs,index,costs,offset,n);
+			System.arraycopy(tile.angles,index,angles,offset,n);
+			x += n; offset += n; length -= n;
+		}
+		return true;
+	}
+	
+	// Copies the costs and orientations of the row of pixels starting at the given pixel into the given arrays:
+	void row(int x, final int y, final byte[] costs, final byte[] angles, int offset, int length) {
+		
+		while (length > 0) {
+			final Tile tile = tile(x,y);
+			final int n = Math.min(length,TILE - (x & MASK));
+			final int index = ((y & MASK) << SHIFT) + (x & MASK);
+			System.arraycopy(tile.costs,index,costs,offset,n);
+			System.arraycopy(tile.angles,index,angles,offset,n);
+			x += n; offset += n; length -= n;
+		}
+	}
+	
+	private void copy(int x, final int y, final byte[] values, int offset, int length, final boolean costs) {
+		
+		while (length > 0) {
+			final Tile tile = tile(x,y);
+			final int n = Math.min(length,TILE - (x & MASK));
+			System.arraycopy(values,offset,costs ? tile.costs : tile.angles,((y & MASK) << SHIFT) + (x & MASK),n);
+			x += n; offset += n; length -= n;
+		}
+	}
+	
+	// Returns the stored value of the given cost:
+	static byte level(final float cost) {
+		
+		return (byte)Math.min(255,Math.max(0,(int)(cost + 0.5f)));
+	}
+	
+	// Returns the stored orientation of the given vector. The angle is
+	// first computed by a polynomial approximation of the arctangent,
+	// whose error is less than 2E-6 radians. Only if that puts the angle
+	// within 1E-3 levels of a quantization boundary is the exact arctangent
+	// used, so the result is always the same as with the exact arctangent:
+	static byte orientation(final float vx, final float vy) {
+		
+		if (vx == 0 && vy == 0) return (byte)NOVECTOR;
+		final double ax = Math.abs(vx), ay = Math.abs(vy);
+		final double q = (ax > ay) ? ay/ax : ax/ay;
+		final double q2 = q*q;
+		double angle = q*(0.99997726 + q2*(-0.33262347 + q2*(0.19354346 + q2*(-0.11643287 + q2*(0.05265332 - q2*0.01172120)))));
+		if (ay > ax) angle = HALFPI - angle;
+		if (vx < 0) angle = Math.PI - angle;
+		if (vy < 0) angle = -angle;
+		if (angle < 0) angle += Math.PI;
+		final double level = angle*ANGLES/Math.PI + 0.5;
+		final double fraction = level - (int)level;
+		int a;
+		if (fraction > 1E-3 && fraction < 1 - 1E-3) a = (int)level;
+		else {
+			angle = Math.atan2(vy,vx);
+			if (angle < 0) angle += Math.PI;
+			a = (int)(angle*ANGLES/Math.PI + 0.5);
+		}
+		if (a >= ANGLES) a -= ANGLES;
+		return (byte)a;
+	}
+	
+	private static final double HALFPI = Math.PI/2;
+	
+	// Returns the tile containing the given pixel, computing it if needed:
+	private Tile tile(final int x, final int y) {
+		
+		final int t = (y >> SHIFT)*xtiles + (x >> SHIFT);
+		final Tile tile = tiles[t];
+		return (tile != null) ? tile : load(t);
+	}
+	
+	private synchronized Tile load(final int t) {
+		
+		if (tiles[t] == null) {
+			++clock;
+			compute(new int[] { t },1);
+			evict();
+		}
+		return tiles[t];
+	}
+	
+	// Makes sure the tiles covering the given region are present, and
+	// discards the least recently prepared tiles if there are too many:
+	synchronized void prepare(final int lx, final int ly, final int hx, final int hy) {
+		
+		if (used == null) return;
+		++clock;
+		final int ltx = Math.max(0,lx >> SHIFT), htx = Math.min(xtiles - 1,hx >> SHIFT);
+		final int lty = Math.max(0,ly >> SHIFT), hty = Math.min(ytiles - 1,hy >> SHIFT);
+		final int[] missing = new int[(htx - ltx + 1)*(hty - lty + 1)];
+		int count = 0;
+		for (int ty=lty; ty<=hty; ++ty)
+			for (int tx=ltx; tx<=htx; ++tx) {
+				final int t = ty*xtiles + tx;
+				used[t] = clock;
+				if (tiles[t] == null) missing[count++] = t;
+			}
+		if (count > 0) compute(missing,count);
+		evict();
+	}
+	
+	// Discards the least recently used tiles, other than those just
+	// prepared or computed, as long as there are too many:
+	private void evict() {
+		
+		while (present > capacity) {
+			int oldest = -1;
+			for (int t=0; t<tiles.length; ++t)
+				if (tiles[t] != null && used[t] < clock && (oldest < 0 || used[t] < used[oldest])) oldest = t;
+			if (oldest < 0) break;
+			tiles[oldest] = null;
+			--present;
+		}
+	}
+	
+	private void compute(final int[] list, final int count) {
+		
+		final Tile[] results = new Tile[count];
+		if (parent != null) for (int k=0; k<count; ++k) results[k] = downsample(list[k]);
+		else source.compute(this,list,count,results);
+		for (int k=0; k<count; ++k) {
+			tiles[list[k]] = results[k];
+			used[list[k]] = clock;
+			++present;
+		}
+	}
+	
+	// Returns the bounds { lowx, lowy, highx + 1, highy + 1 } of the given tile:
+	int[] bounds(final int t) {
+		
+		final int x0 = (t%xtiles) << SHIFT, y0 = (t/xtiles) << SHIFT;
+		return new int[] { x0, y0, Math.min(xsize,x0 + TILE), Math.min(ysize,y0 + TILE) };
+	}
+	
+	// Returns a lazy field downsampled by a factor of two, which keeps for
+	// every block of 2 x 2 pixels the lowest cost and the orientation at
+	// the pixel having that cost, so that thin low-cost structures persist:
+	CostField half() {
+		
+		return new CostField((xsize + 1)/2,(ysize + 1)/2,null,this,lazy() ? capacity : Integer.MAX_VALUE);
+	}
+	
+	private Tile downsample(final int t) {
+		
+		final int[] b = bounds(t);
+		final byte[] costs = new byte[TILE*TILE];
+		final byte[] angles = new byte[TILE*TILE];
+		final int pxsize = parent.xsize, pysize = parent.ysize;
+		for (int y=b[1]; y<b[3]; ++y)
+			for (int x=b[0]; x<b[2]; ++x) {
+				final int h = ((y & MASK) << SHIFT) + (x & MASK);
+				costs[h] = (byte)parent.cost(2*x,2*y);
+				angles[h] = (byte)parent.angle(2*x,2*y);
+				for (int py=2*y; py<=2*y+1 && py<pysize; ++py)
+					for (int px=2*x; px<=2*x+1 && px<pxsize; ++px)
+						if (parent.cost(px,py) < (costs[h]&0xFF)) {
+							costs[h] = (byte)parent.cost(px,py);
+							angles[h] = (byte)parent.angle(px,py);
+						}
+			}
+		return new Tile(costs,angles);
+	}
+	
+	// Fills the field from the given buffer, which contains all costs
+	// followed by all orientations, both in raster order:
+	void read(final ByteBuffer buffer) {
+		
+		for (int y=0; y<ysize; ++y)
+			for (int tx=0; tx<xtiles; ++tx)
+				buffer.get(tiles[(y >> SHIFT)*xtiles + tx].costs,(y & MASK) << SHIFT,Math.min(TILE,xsize - (tx << SHIFT)));
+		for (int y=0; y<ysize; ++y)
+			for (int tx=0; tx<xtiles; ++tx)
+				buffer.get(tiles[(y >> SHIFT)*xtiles + tx].angles,(y & MASK) << SHIFT,Math.min(TILE,xsize - (tx << SHIFT)));
+	}
+	
+	// Writes the field to the given channel in the format read by read():
+	void write(final FileChannel channel) throws IOException {
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(xsize*TILE);
+		for (int a=0; a<2; ++a)
+			for (int ty=0; ty<ytiles; ++ty) {
+				buffer.clear();
+				final int rows = Math.min(TILE,ysize - (ty << SHIFT));
+				for (int r=0; r<rows; ++r)
+					for (int tx=0; tx<xtiles; ++tx) {
+						final Tile tile = tiles[ty*xtiles + tx];
+						buffer.put((a == 0) ? tile.costs : tile.angles,r << SHIFT,Math.min(TILE,xsize - (tx << SHIFT)));
+					}
+				buffer.flip();
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+	}
+	
+}
+
+// ***************************************************************************
+final class CostCache {
+	
+	// Cost fields are cached in files named after the image they were
+	// computed from, with a key derived from the image contents and the
+	// parameters affecting the costs. The files of all images are stored
+	// in a single directory, NJ.cachedir or, if that is empty, a
+	// directory in the preferences directory of the user. The least
+	// recently used files are removed when the total size of the cache
+	// files in the directory exceeds NJ.cachesize megabytes, so the limit
+	// holds for all images together. Caching is a speed-up only: any
+	// failure to read or write the cache is logged and otherwise ignored.
+	
+	static final String EXTENSION = ".ndc";
+	
+	private static final int MAGIC = 0x4E4A4346;
+	private static final int VERSION = 1;
+	private static final int DIGESTSIZE = 16;
+	private static final int HEADERSIZE = 6*4 + DIGESTSIZE;
+	
+	// Returns the cache directory:
+	static String directory() {
+		
+		final String dir = (NJ.cachedir.length() > 0) ? NJ.cachedir : Prefs.getPrefsDir()+File.separator+"NeuronJ"+File.separator+"cache";
+		return dir.endsWith(File.separator) ? dir : dir+File.separator;
+	}
+	
+	// Returns a digest of the dimensions and pixel values of the given
+	// image, or null if it could not be computed:
+	static byte[] digest(final ImageProcessor image) {
+		
+		try {
+			final MessageDigest md = MessageDigest.getInstance("MD5");
+			final ByteBuffer dims = ByteBuffer.allocate(8);
+			dims.putInt(image.getWidth()).putInt(image.getHeight());
+			md.update(dims.array());
+			final Object pixels = image.getPixels();
+			if (pixels instanceof byte[]) md.update((byte[])pixels);
+			else {
+				// Other pixels are digested row by row, preceded by their bit depth:
+				final int depth = image.getBitDepth();
+				md.update((byte)depth);
+				final int width = image.getWidth();
+				final ByteBuffer row = ByteBuffer.allocate(4*width);
+				for (int y=0; y<image.getHeight(); ++y) {
+					row.clear();
+					if (pixels instanceof short[]) row.asShortBuffer().put((short[])pixels,y*width,width);
+					else row.asFloatBuffer().put((float[])pixels,y*width,width);
+					md.update(row.array(),0,(depth/8)*width);
+				}
+			}
+			return md.digest();
+		} catch (Throwable e) {
+			NJ.log("Unable to compute image digest for caching costs");
+			return null;
+		}
+	}
+	
+	// Returns the cached cost field for the given image digest and
+	// parameters, or null if there is none:
+	static CostField load(final String name, final byte[] digest, final int appear, final float scale) {
+		
+		if (NJ.cachesize <= 0) return null;
+		final File file = file(name,digest,appear,scale);
+		if (!file.exists()) return null;
+		
+		NJ.log("Loading costs from "+file.getPath());
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file,"r");
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) throw new IOException();
+			final int xsize = buffer.getInt();
+			final int ysize = buffer.getInt();
+			if (buffer.getInt() != appear || buffer.getFloat() != scale) throw new IOException();
+			final byte[] fdigest = new byte[DIGESTSIZE];
+			buffer.get(fdigest);
+			if (!Arrays.equals(fdigest,digest)) throw new IOException();
+			if (buffer.remaining() != 2L*xsize*ysize) throw new IOException();
+			final CostField costs = new CostField(xsize,ysize);
+			costs.read(buffer);
+			raf.close(); raf = null;
+			file.setLastModified(System.currentTimeMillis());
+			return costs;
+		} catch (OutOfMemoryError e) {
+			throw e;
+		} catch (Throwable e) {
+			NJ.log("Unable to read costs from cache");
+			return null;
+		} finally {
+			if (raf != null) try { raf.close(); } catch (Throwable e) { }
+		}
+	}
+	
+	// Stores the given cost field in the cache and removes the least
+	// recently used files if the cache has grown too large:
+	static void store(final String name, final byte[] digest, final int appear, final float scale, final CostField costs) {
+		
+		if (NJ.cachesize <= 0) return;
+		final File file = file(name,digest,appear,scale);
+		final File temp = new File(file.getPath()+".tmp");
+		
+		NJ.log("Storing costs in "+file.getPath());
+		RandomAccessFile raf = null;
+		try {
+			final File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException();
+			raf = new RandomAccessFile(temp,"rw");
+			raf.setLength(0);
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADERSIZE);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.putInt(costs.xsize()).putInt(costs.ysize());
+			header.putInt(appear).putFloat(scale);
+			header.put(digest);
+			header.flip();
+			while (header.hasRemaining()) channel.write(header);
+			costs.write(channel);
+			raf.close(); raf = null;
+			if (file.exists()) file.delete();
+			if (!temp.renameTo(file)) throw new IOException();
+		} catch (Throwable e) {
+			NJ.log("Unable to write costs to cache");
+			if (raf != null) try { raf.close(); } catch (Throwable x) { }
+			temp.delete();
+			return;
+		}
+		
+		evict(file);
+	}
+	
+	// Removes the least recently used cache files, except the given one,
+	// until the total size is within the limit:
+	private static void evict(final File keep) {
+		
+		final File[] files = keep.getParentFile().listFiles(new FilenameFilter() {
+			public boolean accept(final File dir, final String name) { return name.endsWith(EXTENSION); }
+		});
+		if (files == null) return;
+		long total = 0;
+		for (int i=0; i<files.length; ++i) total += files[i].length();
+		final long limit = 1048576L*NJ.cachesize;
+		if (total <= limit) return;
+		
+		Arrays.sort(files,new Comparator<File>() {
+			public int compare(final File f1, final File f2) {
+				final long m1 = f1.lastModified();
+				final long m2 = f2.lastModified();
+				return (m1 < m2) ? -1 : ((m1 > m2) ? 1 : 0);
+			}
+		});
+		for (int i=0; i<files.length && total > limit; ++i) {
+			if (files[i].equals(keep)) continue;
+			final long length = files[i].length();
+			if (files[i].delete()) {
+				NJ.log("Removed "+files[i].getPath()+" from cost cache");
+				total -= length;
+			}
+		}
+	}
+	
+	private static File file(final String name, final byte[] digest, final int appear, final float scale) {
+		
+		final StringBuffer key = new StringBuffer();
+		for (int i=0; i<8; ++i) key.append(Integer.toHexString(0x100 | (digest[i]&0xFF)).substring(1));
+		return new File(directory()+name+"."+key+"."+appear+"-"+scale+EXTENSION);
+	}
+	
+}
+
+// ***************************************************************************
+
+final class Prefetcher implements Runnable {
+	
+	// Decodes the images following and preceding the current work image
+	// in the background, creates their gray-scale copies, and computes
+	// (or loads from the cache) their costs, so that moving to the next
+	// or previous image does not have to wait for any of these. The
+	// total size of the prefetched data is bounded by NJ.prefetchsize
+	// megabytes. If an image is taken before its costs are available,
+	// they are handed over to the tracing handler once computed. The same
+	// is done for the slices next to the current slice of a stack, and
+	// the data of the most recently visited slices are kept within the
+	// same budget, the least recently visited being dropped first.
+	
+	static final class Entry {
+		
+		final String dir, file;
+		final ImagePlus stack;
+		final int slice;
+		ImagePlus imp;
+		ImageProcessor gray;
+		CostField costs;
+		byte[] digest;
+		int appear;
+		float scale;
+		long bytes;
+		int state = QUEUED;
+		
+		Entry(final String dir, final String file) { this.dir = dir; this.file = file; stack = null; slice = 0; }
+		
+		Entry(final String dir, final ImagePlus stack, final int slice) { this.dir = dir; file = stack.getTitle(); this.stack = stack; this.slice = slice; }
+	}
+	
+	private static final int QUEUED=0, DECODING=1, DECODED=2, COMPUTING=3, DONE=4, DROPPED=5;
+	
+	private Entry[] window = new Entry[0];
+	private Entry taken = null;
+	
+	// The slices next to the current slice, the recently visited slices
+	// (most recent first), and the current slice:
+	private Entry[] slices = new Entry[0];
+	private Entry[] recent = new Entry[0];
+	private Entry current = null;
+	private boolean quit = false;
+	
+	Prefetcher() {
+		
+		final Thread thread = new Thread(this,NJ.NAME+" Prefetcher");
+		thread.setUncaughtExceptionHandler(NJ.catcher);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// Sets the images to be prefetched to those following and preceding
+	// the image with the given number in the given list of files. Entries
+	// for other images are dropped:
+	synchronized void prefetch(final String dir, final String[] files, final int nr) {
+		
+		final Entry[] newwindow = new Entry[2];
+		int count = 0;
+		if (NJ.prefetchsize > 0 && files != null) {
+			final int[] nrs = { nr + 1, nr - 1 };
+			for (int k=0; k<nrs.length; ++k) if (nrs[k] >= 0 && nrs[k] < files.length) {
+				Entry entry = find(dir,files[nrs[k]]);
+				if (entry == null) entry = new Entry(dir,files[nrs[k]]);
+				newwindow[count++] = entry;
+			}
+		}
+		for (int i=0; i<window.length; ++i) {
+			boolean keep = false;
+			for (int k=0; k<count; ++k) if (window[i] == newwindow[k]) keep = true;
+			if (!keep) drop(window[i]);
+		}
+		window = new Entry[count];
+		for (int k=0; k<count; ++k) window[k] = newwindow[k];
+		if (count > 0) NJ.log("Prefetching "+count+" image(s) next to number "+nr+" on the list");
+		notifyAll();
+	}
+	
+	// Removes the entry for the given image from the prefetch window and
+	// returns it, or returns null if the image has not been decoded:
+	synchronized Entry take(final String dir, final String file) {
+		
+		if (taken != null) { drop(taken); taken = null; }
+		final Entry entry = find(dir,file);
+		if (entry == null) return null;
+		while (entry.state == DECODING) try { wait(); } catch (InterruptedException e) { break; }
+		window = remove(window,entry);
+		if (entry.state != DECODED && entry.state != COMPUTING && entry.state != DONE) {
+			drop(entry);
+			return null;
+		}
+		taken = entry;
+		notifyAll();
+		return entry;
+	}
+	
+	// Sets the slices to be prefetched to those following and preceding
+	// the given slice of the given stack, the one in the direction of the
+	// given step first. Prefetched slices that are no longer next to the
+	// given slice are kept as least recently visited. Entries for slices
+	// of other stacks are dropped:
+	synchronized void slices(final String dir, final ImagePlus stack, final int slice, final int step) {
+		
+		final Entry[] newslices = new Entry[2];
+		int count = 0;
+		if (NJ.prefetchsize > 0 && stack != null) {
+			final int[] nrs = (step < 0) ? new int[] { slice - 1, slice + 1 } : new int[] { slice + 1, slice - 1 };
+			for (int k=0; k<nrs.length; ++k) if (nrs[k] >= 1 && nrs[k] <= stack.getStackSize()) {
+				Entry entry = find(stack,nrs[k]);
+				if (entry == null) entry = new Entry(dir,stack,nrs[k]);
+				else recent = remove(recent,entry);
+				newslices[count++] = entry;
+			}
+		}
+		for (int i=0; i<slices.length; ++i) {
+			boolean keep = false;
+			for (int k=0; k<count; ++k) if (slices[i] == newslices[k]) keep = true;
+			if (!keep) {
+				if (slices[i].state == DONE) recent = insert(recent,slices[i],recent.length);
+				else drop(slices[i]);
+			}
+		}
+		slices = new Entry[count];
+		for (int k=0; k<count; ++k) slices[k] = newslices[k];
+		for (int i=recent.length-1; i>=0; --i) if (recent[i].stack != stack) {
+			drop(recent[i]);
+			recent = remove(recent,recent[i]);
+		}
+		if (current != null && current.stack != stack) { drop(current); current = null; }
+		room(0);
+		if (count > 0) NJ.log("Prefetching "+count+" slice(s) next to slice "+slice);
+		notifyAll();
+	}
+	
+	// Keeps the gray-scale copy and costs of the given slice, which is
+	// being left, as the most recently visited slice. If the costs are
+	// not yet available, the entry taken for the slice is kept instead.
+	// Costs computed on demand are not kept, as their tiles may take a
+	// large part of the heap that is not counted in the budget, and a
+	// new lazy field is created when the slice is visited again:
+	synchronized void keep(final String dir, final ImagePlus stack, final int slice, final ImageProcessor gray, final CostField costs, final byte[] digest) {
+		
+		Entry entry = current;
+		current = null;
+		if (entry == null || entry.stack != stack || entry.slice != slice || (entry.state != DECODED && entry.state != COMPUTING)) {
+			if (entry != null) drop(entry);
+			if (NJ.prefetchsize <= 0 || gray == null || costs == null) return;
+			entry = new Entry(dir,stack,slice);
+			entry.imp = stack;
+			entry.gray = gray;
+			if (!costs.lazy()) {
+				entry.costs = costs;
+				entry.digest = digest;
+			}
+			entry.appear = NJ.appear;
+			entry.scale = NJ.scale;
+			entry.bytes = slicebytes(stack);
+			if (entry.costs != null) entry.bytes += 2L*gray.getWidth()*gray.getHeight();
+			entry.state = DONE;
+		}
+		recent = insert(recent,entry,0);
+		room(0);
+		notifyAll();
+	}
+	
+	// Removes the entry for the given slice of the given stack from the
+	// prefetched or recently visited slices and returns it, or returns
+	// null if the slice has not been decoded:
+	synchronized Entry take(final ImagePlus stack, final int slice) {
+		
+		if (current != null) { drop(current); current = null; }
+		final Entry entry = find(stack,slice);
+		if (entry == null) return null;
+		while (entry.state == DECODING) try { wait(); } catch (InterruptedException e) { break; }
+		slices = remove(slices,entry);
+		recent = remove(recent,entry);
+		if (entry.state != DECODED && entry.state != COMPUTING && entry.state != DONE) {
+			drop(entry);
+			return null;
+		}
+		current = entry;
+		notifyAll();
+		return entry;
+	}
+	
+	// Returns the costs of the given entry if they have been computed with
+	// the current parameters, or null otherwise. If requested, waits for
+	// the computation to finish:
+	synchronized CostField costs(final Entry entry, final boolean wait) {
+		
+		if (wait) while (entry.state == DECODED || entry.state == COMPUTING)
+		try { wait(); } catch (InterruptedException e) { break; }
+		if (entry.state == DONE && entry.costs != null && entry.appear == NJ.appear && entry.scale == NJ.scale && (NJ.scales.length == 0 || entry.costs.lazy()))
+		return entry.costs;
+		return null;
+	}
+	
+	synchronized void quit() {
+		
+		for (int i=0; i<window.length; ++i) drop(window[i]);
+		window = new Entry[0];
+		if (taken != null) { drop(taken); taken = null; }
+		for (int i=0; i<slices.length; ++i) drop(slices[i]);
+		slices = new Entry[0];
+		for (int i=0; i<recent.length; ++i) drop(recent[i]);
+		recent = new Entry[0];
+		if (current != null) { drop(current); current = null; }
+		quit = true;
+		notifyAll();
+	}
+	
+	public void run() {
+		
+		while (true) {
+			Entry entry = null;
+			boolean compute = false;
+			synchronized (this) {
+				while (!quit && (entry = next()) == null)
+				try { wait(); } catch (InterruptedException e) { return; }
+				if (quit) return;
+				compute = (entry.state == DECODED);
+				entry.state = compute ? COMPUTING : DECODING;
+			}
+			if (compute) compute(entry);
+			else decode(entry);
+		}
+	}
+	
+	// The costs of the taken image or slice have priority over decoding,
+	// which in turn has priority over computing the costs of prefetched
+	// images. Slices of the current stack come before other images:
+	private Entry next() {
+		
+		if (current != null && current.state == DECODED) return current;
+		if (taken != null && taken.state == DECODED) return taken;
+		for (int i=0; i<slices.length; ++i) if (slices[i].state == QUEUED) return slices[i];
+		for (int i=0; i<window.length; ++i) if (window[i].state == QUEUED) return window[i];
+		for (int i=0; i<slices.length; ++i) if (slices[i].state == DECODED) return slices[i];
+		for (int i=0; i<window.length; ++i) if (window[i].state == DECODED) return window[i];
+		for (int i=0; i<recent.length; ++i) if (recent[i].state == DECODED) return recent[i];
+		return null;
+	}
+	
+	private void decode(final Entry entry) {
+		
+		ImagePlus imp = null;
+		ImageProcessor gray = null;
+		long bytes = 0;
+		try {
+			if (entry.stack != null) {
+				// Slices of virtual stacks are read from disk here:
+				imp = entry.stack;
+				bytes = slicebytes(imp);
+				if (room(bytes)) gray = TracingHandler.grayscale(imp.getStack().getProcessor(entry.slice));
+			} else {
+				imp = (new Opener()).openImage(entry.dir,entry.file);
+				if (imp != null) bytes = bytes(imp);
+				if (imp != null && TracingToolbar.unsupported(imp) == null && room(bytes))
+				gray = TracingHandler.grayscale(imp.getProcessor());
+			}
+		} catch (Throwable e) {
+			// Includes running out of memory, in which case the image is simply not prefetched
+			gray = null;
+		}
+		synchronized (this) {
+			if (entry.state != DROPPED && gray != null && room(bytes)) {
+				entry.imp = imp;
+				entry.gray = gray;
+				entry.bytes = bytes;
+				entry.state = DECODED;
+				if (entry.stack != null) NJ.log("Prefetched slice "+entry.slice+" of image "+entry.dir+entry.file);
+				else NJ.log("Prefetched image "+entry.dir+entry.file);
+			} else drop(entry);
+			notifyAll();
+		}
+	}
+	
+	// Returns the number of bytes taken by the given image and the
+	// gray-scale copy of one of its slices, which for 8-bit images may
+	// take one byte per pixel, and otherwise shares the pixels of the
+	// image. The slices of virtual stacks are read only when needed:
+	private static long bytes(final ImagePlus imp) {
+		
+		final int others = (imp.getStackSize() > 1 && !imp.getStack().isVirtual()) ? imp.getStackSize() - 1 : 0;
+		return slicebytes(imp) + others*(imp.getBitDepth()/8)*(long)imp.getWidth()*imp.getHeight();
+	}
+	
+	// Returns the number of bytes taken by one slice of the given image
+	// and its gray-scale copy:
+	private static long slicebytes(final ImagePlus imp) {
+		
+		return Math.max(2,imp.getBitDepth()/8)*(long)imp.getWidth()*imp.getHeight();
+	}
+	
+	private void compute(final Entry entry) {
+		
+		final ImageProcessor gray = entry.gray;
+		final String name = NJ.basename(entry.imp.getTitle());
+		final int appear = NJ.appear;
+		final float scale = NJ.scale;
+		final long pixels = (long)gray.getWidth()*gray.getHeight();
+		final boolean lazy = Costs.lazy(gray);
+		boolean feasible;
+		synchronized (this) { feasible = (lazy || entry == taken || entry == current || room(2L*pixels)); }
+		
+		// Computing the costs temporarily requires the eigenvalues and
+		// the derivatives of a few tiles:
+		final Runtime runtime = Runtime.getRuntime();
+		final long available = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+		if (!lazy && available < 8L*pixels) feasible = false;
+		
+		// Multi-scale costs are computed once the image is traced:
+		if (!lazy && NJ.scales.length > 0) feasible = false;
+		
+		CostField costs = null;
+		byte[] digest = null;
+		if (lazy) {
+			// Large images have their costs computed on demand when traced:
+			final Costs ci = new Costs();
+			costs = ci.lazy(gray,(appear==0),scale);
+		} else if (feasible) try {
+			if (NJ.cachesize > 0) digest = CostCache.digest(gray);
+			if (digest != null) costs = CostCache.load(name,digest,appear,scale);
+			if (costs == null) {
+				final Costs ci = new Costs();
+				ci.display(false);
+				costs = ci.run(gray,(appear==0),scale);
+				if (digest != null) CostCache.store(name,digest,appear,scale,costs);
+			}
+		} catch (Throwable e) {
+			// Includes running out of memory, in which case the costs are computed on demand
+			costs = null;
+		}
+		
+		boolean handover = false;
+		synchronized (this) {
+			if (entry.state != DROPPED) {
+				entry.costs = costs;
+				entry.digest = digest;
+				entry.appear = appear;
+				entry.scale = scale;
+				if (costs != null && !lazy) entry.bytes += 2L*pixels;
+				entry.state = DONE;
+				handover = (entry == taken || entry == current);
+			}
+			notifyAll();
+		}
+		if (handover) EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				try { if (NJ.nhd != null) NJ.nhd.prefetched(entry); }
+				catch (Throwable e) { NJ.catcher.uncaughtException(Thread.currentThread(),e); }
+			}
+		});
+	}
+	
+	// Determines whether the given number of additional bytes fits within
+	// the prefetch memory budget (the taken image and slice do not count):
+	private boolean fits(final long bytes) {
+		
+		long total = bytes;
+		for (int i=0; i<window.length; ++i) total += window[i].bytes;
+		for (int i=0; i<slices.length; ++i) total += slices[i].bytes;
+		for (int i=0; i<recent.length; ++i) total += recent[i].bytes;
+		return total <= 1048576L*NJ.prefetchsize;
+	}
+	
+	// Same as fits(), but first drops as many of the least recently
+	// visited slices as needed to make room for the given bytes:
+	private synchronized boolean room(final long bytes) {
+		
+		while (!fits(bytes) && recent.length > 0) {
+			drop(recent[recent.length-1]);
+			recent = remove(recent,recent[recent.length-1]);
+		}
+		return fits(bytes);
+	}
+	
+	private Entry find(final String dir, final String file) {
+		
+		for (int i=0; i<window.length; ++i)
+		if (window[i].dir.equals(dir) && window[i].file.equals(file)) return window[i];
+		return null;
+	}
+	
+	private Entry find(final ImagePlus stack, final int slice) {
+		
+		for (int i=0; i<slices.length; ++i)
+		if (slices[i].stack == stack && slices[i].slice == slice) return slices[i];
+		for (int i=0; i<recent.length; ++i)
+		if (recent[i].stack == stack && recent[i].slice == slice) return recent[i];
+		return null;
+	}
+	
+	private static Entry[] insert(final Entry[] entries, final Entry entry, final int index) {
+		
+		final Entry[] newentries = new Entry[entries.length+1];
+		for (int i=0, k=0; k<newentries.length; ++k) newentries[k] = (k == index) ? entry : entries[i++];
+		return newentries;
+	}
+	
+	private static Entry[] remove(final Entry[] entries, final Entry entry) {
+		
+		int count = 0;
+		for (int i=0; i<entries.length; ++i) if (entries[i] != entry) ++count;
+		if (count == entries.length) return entries;
+		final Entry[] newentries = new Entry[count];
+		for (int i=0, k=0; i<entries.length; ++i) if (entries[i] != entry) newentries[k++] = entries[i];
+		return newentries;
+	}
+	
+	private void drop(final Entry entry) {
 		
-		return evv;
+		entry.state = DROPPED;
+		entry.imp = null;
+		entry.gray = null;
+		entry.costs = null;
+		entry.bytes = 0;
 	}
 	
 }